@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.dasein.util.Jiterator;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Results of a listing that is filled in by tasks on the provider executor while the caller consumes it. Unlike a
+ * bare {@link Jiterator}, the consumer can {@link #close()} the results once it has seen enough; producers check
+ * {@link #isCancelled()} before each fetch and {@link #push(Object)} refuses further items, so an abandoned listing
+ * stops issuing API calls.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class AsyncResults<T> implements Iterable<T>, Iterator<T>, Closeable {
+    private volatile boolean   cancelled = false;
+    private final Jiterator<T> items     = new Jiterator<T>();
+
+    public AsyncResults() { }
+
+    /**
+     * Stops the listing. Items already received remain available; no further items are accepted and fetches that
+     * have not yet started are skipped.
+     */
+    @Override
+    public void close() {
+        synchronized( this ) {
+            cancelled = true;
+        }
+        items.complete();
+    }
+
+    /**
+     * Marks the listing as finished.
+     */
+    public void complete() {
+        items.complete();
+    }
+
+    /**
+     * Fails the listing. The consumer sees the failure on its next read.
+     * @param error the cause of the failure
+     */
+    public synchronized void fail(@Nonnull Exception error) {
+        if( !cancelled ) {
+            items.setLoadException(error);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return items.hasNext();
+    }
+
+    /**
+     * @return true if the consumer has closed these results
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public @Nonnull Iterator<T> iterator() {
+        return this;
+    }
+
+    @Override
+    public T next() {
+        return items.next();
+    }
+
+    /**
+     * Adds an item to the results.
+     * @param item the item to add
+     * @return false if the results have been closed and the producer should stop
+     */
+    public synchronized boolean push(@Nonnull T item) {
+        if( cancelled ) {
+            return false;
+        }
+        items.push(item);
+        return true;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Results are read-only");
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Progress handle for an operation applied to many resources at once. Each resource has its own outcome that
+ * moves from {@link Status#IN_PROGRESS} to either {@link Status#SUCCEEDED} or {@link Status#FAILED} exactly
+ * once. Callers may poll the counts, inspect individual outcomes, or block until the whole set is done.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class BulkProgress<T> {
+    static public enum Status { IN_PROGRESS, SUCCEEDED, FAILED }
+
+    static public class Outcome<T> {
+        private final Throwable error;
+        private final String    resourceId;
+        private final T         result;
+        private final Status    status;
+
+        Outcome(@Nonnull String resourceId, @Nonnull Status status, @Nullable T result, @Nullable Throwable error) {
+            this.resourceId = resourceId;
+            this.status = status;
+            this.result = result;
+            this.error = error;
+        }
+
+        public @Nullable Throwable getError() {
+            return error;
+        }
+
+        public @Nonnull String getResourceId() {
+            return resourceId;
+        }
+
+        public @Nullable T getResult() {
+            return result;
+        }
+
+        public @Nonnull Status getStatus() {
+            return status;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return (resourceId + " [" + status + "]" + (error == null ? "" : " " + error.getMessage()));
+        }
+    }
+
+    private final LinkedHashMap<String,Outcome<T>> outcomes = new LinkedHashMap<String,Outcome<T>>();
+    private final CountDownLatch                   latch;
+    private int                                    failed   = 0;
+
+    public BulkProgress(@Nonnull Collection<String> resourceIds) {
+        for( String id : resourceIds ) {
+            outcomes.put(id, new Outcome<T>(id, Status.IN_PROGRESS, null, null));
+        }
+        latch = new CountDownLatch(outcomes.size());
+    }
+
+    /**
+     * Waits up to the specified time for every resource in the set to reach a final outcome.
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return true if the whole set completed within the timeout
+     * @throws InterruptedException the wait was interrupted
+     */
+    public boolean await(@Nonnegative long timeoutMillis) throws InterruptedException {
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(@Nonnull String resourceId, @Nonnull Status status, @Nullable T result, @Nullable Throwable error) {
+        synchronized( this ) {
+            Outcome<T> current = outcomes.get(resourceId);
+
+            if( current == null || !Status.IN_PROGRESS.equals(current.getStatus()) ) {
+                return;
+            }
+            outcomes.put(resourceId, new Outcome<T>(resourceId, status, result, error));
+            if( Status.FAILED.equals(status) ) {
+                failed++;
+            }
+        }
+        latch.countDown();
+    }
+
+    /**
+     * Records a failure for the specified resource. Ignored if the resource already has a final outcome.
+     * @param resourceId the resource whose operation failed
+     * @param error the cause of the failure
+     */
+    public void failed(@Nonnull String resourceId, @Nonnull Throwable error) {
+        finish(resourceId, Status.FAILED, null, error);
+    }
+
+    public int getCompletedCount() {
+        return (int)(outcomes.size() - latch.getCount());
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    public synchronized @Nullable Outcome<T> getOutcome(@Nonnull String resourceId) {
+        return outcomes.get(resourceId);
+    }
+
+    /**
+     * @return a snapshot of the outcome of every resource in the set, in the order they were submitted
+     */
+    public synchronized @Nonnull Map<String,Outcome<T>> getOutcomes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String,Outcome<T>>(outcomes));
+    }
+
+    public int getTotalCount() {
+        return outcomes.size();
+    }
+
+    public boolean isComplete() {
+        return (latch.getCount() < 1L);
+    }
+
+    /**
+     * Records a successful outcome for the specified resource. Ignored if the resource already has a final outcome.
+     * @param resourceId the resource whose operation succeeded
+     * @param result the result of the operation, if any
+     */
+    public void succeeded(@Nonnull String resourceId, @Nullable T result) {
+        finish(resourceId, Status.SUCCEEDED, result, null);
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Lists a resource across an account by enumerating its user containers through the directory discovery endpoint
+ * and fetching each user's container concurrently. Results are pushed onto the returned iterator as each user's
+ * listing arrives, so callers start consuming after roughly one user's latency instead of waiting on the whole
+ * account container. If discovery yields nothing, the account container is listed directly. Closing the returned
+ * {@link AsyncResults} skips the user containers not yet fetched.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public abstract class ContainerFanOut<T> {
+    static private final Logger logger = NimbulaDirector.getLogger(ContainerFanOut.class);
+
+    private final NimbulaDirector cloud;
+    private final int             parallelism;
+    private final String          resource;
+    private final Class<T>        type;
+
+    /**
+     * @param cloud the provider session
+     * @param resource the Nimbula resource being listed, e.g. <code>instance</code>
+     * @param type the mapped type, used to key results in the inventory cache
+     * @param parallelism the maximum number of user containers fetched at once
+     */
+    public ContainerFanOut(@Nonnull NimbulaDirector cloud, @Nonnull String resource, @Nonnull Class<T> type, @Nonnegative int parallelism) {
+        this.cloud = cloud;
+        this.resource = resource;
+        this.type = type;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Maps one raw object from a user container.
+     * @param ob the raw object
+     * @return the mapped resource, or <code>null</code> to drop it
+     * @throws JSONException the object is malformed
+     * @throws CloudException an error occurred in the cloud while mapping
+     * @throws InternalException an error occurred processing the object
+     */
+    protected abstract @Nullable T toResource(@Nonnull JSONObject ob) throws JSONException, CloudException, InternalException;
+
+    /**
+     * Provides the provider ID under which a mapped resource is cached.
+     * @param resource the mapped resource
+     * @return the resource's provider ID
+     */
+    protected abstract @Nonnull String getId(@Nonnull T resource);
+
+    /**
+     * Discovers the user containers and starts fetching them in the background.
+     * @return an iterator that yields resources as each user container is read
+     * @throws CloudException discovery failed
+     * @throws InternalException an error occurred processing the discovery response
+     */
+    public @Nonnull Iterable<T> list() throws CloudException, InternalException {
+        List<String> containers = discoverContainers();
+
+        if( containers.isEmpty() ) {
+            NimbulaMethod method = new NimbulaMethod(cloud, resource);
+
+            method.list();
+            return read(method);
+        }
+        final AsyncResults<T> results = new AsyncResults<T>();
+        final AtomicInteger remaining = new AtomicInteger(containers.size());
+        ThrottledExecutor executor = new ThrottledExecutor(cloud.getExecutor(), parallelism);
+
+        for( final String container : containers ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if( !results.isCancelled() ) {
+                            NimbulaMethod method = new NimbulaMethod(cloud, resource);
+                            int code = method.get(container);
+
+                            if( code != 404 && code != 401 ) {
+                                for( T item : read(method) ) {
+                                    if( !results.push(item) ) {
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                        if( remaining.decrementAndGet() == 0 ) {
+                            results.complete();
+                        }
+                    }
+                    catch( Exception e ) {
+                        logger.error("Failed to list " + resource + " container " + container + ": " + e.getMessage());
+                        remaining.set(-1);
+                        results.fail(e);
+                    }
+                }
+            });
+        }
+        return results;
+    }
+
+    private @Nonnull List<String> discoverContainers() throws CloudException, InternalException {
+        NimbulaMethod method = new NimbulaMethod(cloud, resource);
+        ArrayList<String> containers = new ArrayList<String>();
+
+        if( method.discover() == 401 ) {
+            return containers;
+        }
+        try {
+            for( String path : method.getDirectoryEntries() ) {
+                if( !path.endsWith("/") ) {
+                    path = path + "/";
+                }
+                containers.add(path);
+            }
+            return containers;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+
+    private @Nonnull Iterable<T> read(@Nonnull NimbulaMethod method) throws CloudException, InternalException {
+        try {
+            LinkedHashMap<String,T> items = new LinkedHashMap<String,T>();
+
+            for( JSONObject ob : method.getResults(null) ) {
+                T item = toResource(ob);
+
+                if( item != null ) {
+                    items.put(getId(item), item);
+                }
+            }
+            cloud.getInventoryCache().putAll(type, items);
+            return items.values();
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+}
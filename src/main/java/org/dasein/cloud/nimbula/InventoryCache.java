@@ -0,0 +1,420 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.beans.BeanInfo;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Per-session cache of the resources this provider has most recently seen, populated from list and get responses
+ * and kept current by the provider's own mutations. Readers specify how stale an entry they are willing to
+ * accept, so that dashboards can be served from memory while workflows needing fresh data still go to the cloud.
+ * <p>
+ * Dasein Cloud model objects (virtual machines, volumes, firewalls and so on) are mutable, so the cache stores
+ * and hands out copies of them and a caller changing what it got back never corrupts what other callers see.
+ * This provider's own index types are shared as-is, since they are built to be updated in place by every caller.
+ * </p>
+ * <p>
+ * Entries older than {@link #MAXIMUM_AGE} are of no use to any reader and are swept out periodically, and each
+ * resource type is capped at {@link #MAXIMUM_ENTRIES} entries so that large listings cannot grow the cache
+ * without bound; the oldest entries go first, though a listing larger than the cap is never cut short.
+ * </p>
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class InventoryCache {
+    /**
+     * Loads a resource from the cloud on a cache miss.
+     */
+    static public interface Loader<T> {
+        public @Nullable T load() throws CloudException, InternalException;
+    }
+
+    static private final Logger logger = NimbulaDirector.getLogger(InventoryCache.class);
+
+    static private final long LOAD_TIMEOUT   = CalendarWrapper.MINUTE * 5L;
+    static private final long SWEEP_INTERVAL = CalendarWrapper.MINUTE;
+
+    /**
+     * The age beyond which an entry is dropped, well past the staleness any reader in this provider accepts.
+     */
+    static public final long MAXIMUM_AGE = CalendarWrapper.HOUR;
+
+    /**
+     * The most entries kept for any one resource type.
+     */
+    static public final int MAXIMUM_ENTRIES = 10000;
+
+    static private class Entry {
+        public final long   timestamp;
+        public final Object value;
+        // the put, putAll or replaceAll call that wrote the entry
+        public final long   write;
+
+        public Entry(@Nonnull Object value, @Nonnegative long timestamp, @Nonnegative long write) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.write = write;
+        }
+    }
+
+    // each type's entries are kept in the order they were written, so the eldest is always first
+    private final ConcurrentHashMap<Class<?>,LinkedHashMap<String,Entry>> caches    = new ConcurrentHashMap<Class<?>,LinkedHashMap<String,Entry>>();
+    private final ConcurrentHashMap<String,SettableFuture<Object>>        loads     = new ConcurrentHashMap<String,SettableFuture<Object>>();
+    private final AtomicLong                                              lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong                                              writes    = new AtomicLong(0L);
+
+    public InventoryCache() { }
+
+    /**
+     * Drops everything cached for the specified resource type.
+     * @param type the type of resource to forget
+     */
+    public void clear(@Nonnull Class<?> type) {
+        caches.remove(type);
+    }
+
+    /**
+     * Copies a Dasein Cloud model object property by property so that the copy shares no mutable state with the
+     * original. Anything else, including this provider's own index types, is returned as-is. Other caches of Dasein
+     * Cloud model objects use this to hand out copies as well.
+     * @param type the type of resource being copied
+     * @param value the resource to copy
+     * @return a copy of the resource, or the resource itself if it is not copied or cannot be copied
+     */
+    @SuppressWarnings("unchecked")
+    static public @Nullable <T> T copyOf(@Nonnull Class<T> type, @Nullable T value) {
+        if( value == null || !isCopied(value.getClass()) ) {
+            return value;
+        }
+        try {
+            BeanInfo info = Introspector.getBeanInfo(value.getClass(), Object.class);
+            Object copy = value.getClass().newInstance();
+
+            for( PropertyDescriptor property : info.getPropertyDescriptors() ) {
+                Method getter = property.getReadMethod();
+                Method setter = property.getWriteMethod();
+
+                if( getter == null || getter.getParameterTypes().length > 0 ) {
+                    continue;
+                }
+                Object current = getter.invoke(value);
+
+                if( current == null ) {
+                    continue;
+                }
+                if( setter != null ) {
+                    setter.invoke(copy, copyValue(setter.getParameterTypes()[0], current));
+                }
+                else {
+                    // properties like tags are often exposed as a live collection with no setter
+                    Object target = getter.invoke(copy);
+
+                    try {
+                        if( target instanceof Map && current instanceof Map && target != current ) {
+                            ((Map<Object,Object>)target).putAll((Map<?,?>)current);
+                        }
+                        else if( target instanceof Collection && current instanceof Collection && target != current ) {
+                            ((Collection<Object>)target).addAll((Collection<?>)current);
+                        }
+                    }
+                    catch( UnsupportedOperationException ignore ) {
+                        // read-only view of derived state
+                    }
+                }
+            }
+            return type.cast(copy);
+        }
+        catch( Exception e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Unable to copy " + value.getClass().getName() + " for the inventory cache: " + e.getMessage());
+            }
+            return value;
+        }
+    }
+
+    static private @Nonnull Object copyValue(@Nonnull Class<?> propertyType, @Nonnull Object value) {
+        if( value.getClass().isArray() ) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        if( value instanceof Map && propertyType.isAssignableFrom(HashMap.class) ) {
+            return new HashMap<Object,Object>((Map<?,?>)value);
+        }
+        if( value instanceof List && propertyType.isAssignableFrom(ArrayList.class) ) {
+            return new ArrayList<Object>((List<?>)value);
+        }
+        if( value instanceof Collection && propertyType.isAssignableFrom(HashSet.class) ) {
+            return new HashSet<Object>((Collection<?>)value);
+        }
+        return value;
+    }
+
+    /**
+     * Looks up a cached resource no older than the specified staleness.
+     * @param type the type of resource being looked up
+     * @param id the unique ID of the resource
+     * @param maxStaleness the maximum acceptable age of the entry in milliseconds; zero never hits the cache
+     * @return the cached resource, or <code>null</code> if there is no fresh enough entry
+     */
+    public @Nullable <T> T get(@Nonnull Class<T> type, @Nonnull String id, @Nonnegative long maxStaleness) {
+        if( maxStaleness < 1L ) {
+            return null;
+        }
+        Map<String,Entry> cache = caches.get(type);
+
+        if( cache == null ) {
+            return null;
+        }
+        Entry entry;
+
+        synchronized( cache ) {
+            entry = cache.get(id);
+        }
+
+        if( entry == null || (System.currentTimeMillis() - entry.timestamp) > maxStaleness ) {
+            return null;
+        }
+        return copyOf(type, type.cast(entry.value));
+    }
+
+    /**
+     * Looks up a cached resource no older than the specified staleness, loading and caching it on a miss.
+     * Concurrent callers that miss on the same resource share a single load rather than each going to the cloud.
+     * @param type the type of resource being looked up
+     * @param id the unique ID of the resource
+     * @param maxStaleness the maximum acceptable age of the entry in milliseconds; zero always loads (or joins a
+     * load already in flight)
+     * @param loader fetches the resource from the cloud
+     * @return the resource, or <code>null</code> if the loader found nothing
+     * @throws CloudException the load failed in the cloud
+     * @throws InternalException the load failed locally
+     */
+    public @Nullable <T> T get(@Nonnull Class<T> type, @Nonnull String id, @Nonnegative long maxStaleness, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        T value = get(type, id, maxStaleness);
+
+        if( value != null ) {
+            return value;
+        }
+        String key = type.getName() + ":" + id;
+        SettableFuture<Object> load = new SettableFuture<Object>();
+        SettableFuture<Object> existing = loads.putIfAbsent(key, load);
+
+        if( existing != null ) {
+            return copyOf(type, type.cast(existing.await(LOAD_TIMEOUT)));
+        }
+        try {
+            value = loader.load();
+            if( value == null ) {
+                remove(type, id);
+            }
+            else {
+                put(type, id, value);
+            }
+            load.complete(value);
+            return copyOf(type, value);
+        }
+        catch( CloudException e ) {
+            load.fail(e);
+            throw e;
+        }
+        catch( InternalException e ) {
+            load.fail(e);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            load.fail(e);
+            throw e;
+        }
+        catch( Error e ) {
+            load.fail(e);
+            throw e;
+        }
+        finally {
+            loads.remove(key, load);
+        }
+    }
+
+    private @Nonnull LinkedHashMap<String,Entry> getCache(@Nonnull Class<?> type) {
+        LinkedHashMap<String,Entry> cache = caches.get(type);
+
+        if( cache == null ) {
+            LinkedHashMap<String,Entry> existing;
+
+            cache = new LinkedHashMap<String,Entry>();
+            existing = caches.putIfAbsent(type, cache);
+            if( existing != null ) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    static private boolean isCopied(@Nonnull Class<?> type) {
+        Package p = type.getPackage();
+
+        if( p == null ) {
+            return false;
+        }
+        return p.getName().startsWith("org.dasein.cloud.") && !p.getName().startsWith(NimbulaDirector.class.getPackage().getName());
+    }
+
+    /**
+     * Caches a resource as of now.
+     * @param type the type of resource being cached
+     * @param id the unique ID of the resource
+     * @param value the resource
+     */
+    public <T> void put(@Nonnull Class<T> type, @Nonnull String id, @Nonnull T value) {
+        putAll(type, Collections.singletonMap(id, value));
+    }
+
+    /**
+     * Caches every resource from a partial listing, leaving other entries of the same type alone.
+     * @param type the type of resource being cached
+     * @param values the listed resources keyed by their unique IDs
+     */
+    public <T> void putAll(@Nonnull Class<T> type, @Nonnull Map<String,T> values) {
+        LinkedHashMap<String,Entry> cache = getCache(type);
+        ArrayList<Map.Entry<String,Entry>> entries = new ArrayList<Map.Entry<String,Entry>>();
+        long now = System.currentTimeMillis();
+        long write = writes.incrementAndGet();
+
+        // copies are made before taking the lock
+        for( Map.Entry<String,T> value : values.entrySet() ) {
+            entries.add(new AbstractMap.SimpleEntry<String,Entry>(value.getKey(), new Entry(copyOf(type, value.getValue()), now, write)));
+        }
+        synchronized( cache ) {
+            for( Map.Entry<String,Entry> entry : entries ) {
+                // removed first so that a rewritten entry moves to the end of the write order
+                cache.remove(entry.getKey());
+                cache.put(entry.getKey(), entry.getValue());
+            }
+            trim(cache, write);
+        }
+        sweep();
+    }
+
+    /**
+     * Removes a resource from the cache, typically because this provider has just changed or deleted it.
+     * @param type the type of resource being removed
+     * @param id the unique ID of the resource
+     */
+    public void remove(@Nonnull Class<?> type, @Nonnull String id) {
+        Map<String,Entry> cache = caches.get(type);
+
+        if( cache != null ) {
+            synchronized( cache ) {
+                cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Caches every resource from a complete listing of a resource type. Entries that were cached before the
+     * listing started and are missing from it are dropped, since the resource no longer exists.
+     * @param type the type of resource being cached
+     * @param values the listed resources keyed by their unique IDs
+     * @param listedAt when the listing was requested
+     */
+    public <T> void replaceAll(@Nonnull Class<T> type, @Nonnull Map<String,T> values, @Nonnegative long listedAt) {
+        LinkedHashMap<String,Entry> cache = getCache(type);
+
+        putAll(type, values);
+        synchronized( cache ) {
+            Iterator<Map.Entry<String,Entry>> it = cache.entrySet().iterator();
+
+            while( it.hasNext() ) {
+                Map.Entry<String,Entry> entry = it.next();
+
+                if( entry.getValue().timestamp < listedAt && !values.containsKey(entry.getKey()) ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops entries too old for any reader, at most once every {@link #SWEEP_INTERVAL}.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+
+        if( (now - last) < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now) ) {
+            return;
+        }
+        for( LinkedHashMap<String,Entry> cache : caches.values() ) {
+            synchronized( cache ) {
+                Iterator<Entry> it = cache.values().iterator();
+
+                // entries are in write order, so the sweep stops at the first one young enough to keep
+                while( it.hasNext() && (now - it.next().timestamp) > MAXIMUM_AGE ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the eldest entries of a resource type while it holds more than {@link #MAXIMUM_ENTRIES}, but never an
+     * entry written by the current call, so a listing larger than the cap is kept whole. The caller holds the lock
+     * on <code>cache</code>.
+     * @param cache the entries for one resource type
+     * @param write the call whose entries are kept
+     */
+    private void trim(@Nonnull LinkedHashMap<String,Entry> cache, @Nonnegative long write) {
+        Iterator<Entry> it = cache.values().iterator();
+
+        while( cache.size() > MAXIMUM_ENTRIES && it.hasNext() ) {
+            if( it.next().write == write ) {
+                // everything after this was written by the same call
+                return;
+            }
+            it.remove();
+        }
+    }
+}
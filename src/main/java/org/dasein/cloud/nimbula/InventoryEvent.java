@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A change to a cloud resource detected by the {@link InventoryWatcher} when comparing consecutive listings.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class InventoryEvent {
+    static public enum Action { CREATED, CHANGED, DELETED }
+
+    static public enum ResourceType { VIRTUAL_MACHINE, VOLUME, FIREWALL }
+
+    private final Action       action;
+    private final String       resourceId;
+    private final ResourceType resourceType;
+    private final String       state;
+    private final long         timestamp;
+
+    public InventoryEvent(@Nonnull ResourceType resourceType, @Nonnull Action action, @Nonnull String resourceId, @Nullable String state, @Nonnegative long timestamp) {
+        this.resourceType = resourceType;
+        this.action = action;
+        this.resourceId = resourceId;
+        this.state = state;
+        this.timestamp = timestamp;
+    }
+
+    public @Nonnull Action getAction() {
+        return action;
+    }
+
+    public @Nonnull String getResourceId() {
+        return resourceId;
+    }
+
+    public @Nonnull ResourceType getResourceType() {
+        return resourceType;
+    }
+
+    /**
+     * @return the raw Nimbula state or status of the resource when the change was seen, if it has one
+     */
+    public @Nullable String getState() {
+        return state;
+    }
+
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (action + " " + resourceType + " " + resourceId + (state == null ? "" : " [" + state + "]"));
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.nimbula.compute.Instance;
+import org.dasein.cloud.nimbula.compute.Storage;
+import org.dasein.cloud.nimbula.network.SecurityList;
+import org.dasein.util.CalendarWrapper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Watches the virtual machines, volumes, and security lists of a provider session and publishes
+ * {@link InventoryEvent}s to registered listeners. Each resource type is listed once per interval no matter how
+ * many listeners are registered. Consecutive listings are diffed by object name using a fingerprint of each
+ * object's attributes, so unchanged objects cost nothing beyond the listing itself. The first listing after the
+ * watcher starts only seeds the snapshot and publishes no events. The watcher runs only while it has listeners.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class InventoryWatcher {
+    static private final Logger logger = NimbulaDirector.getLogger(InventoryWatcher.class);
+
+    static public final long DEFAULT_INTERVAL = 30L * CalendarWrapper.SECOND;
+
+    /**
+     * Receives inventory change events. Listeners are called from the watcher thread and should return quickly.
+     */
+    static public interface Listener {
+        public void inventoryChanged(@Nonnull InventoryEvent event);
+    }
+
+    static private class Snapshot {
+        public final InventoryEvent.ResourceType resourceType;
+        public final String                      resource;
+        public final String                      stateField;
+        public Map<String,Long>                  fingerprints = null;
+
+        public Snapshot(@Nonnull InventoryEvent.ResourceType resourceType, @Nonnull String resource, @Nullable String stateField) {
+            this.resourceType = resourceType;
+            this.resource = resource;
+            this.stateField = stateField;
+        }
+    }
+
+    private final NimbulaDirector                    cloud;
+    private long                                     interval  = DEFAULT_INTERVAL;
+    private final CopyOnWriteArrayList<Listener>     listeners = new CopyOnWriteArrayList<Listener>();
+    private final ScheduledThreadPoolExecutor        scheduler;
+    private final List<Snapshot>                     snapshots;
+    private ScheduledFuture<?>                       task      = null;
+
+    public InventoryWatcher(@Nonnull NimbulaDirector cloud) {
+        ArrayList<Snapshot> list = new ArrayList<Snapshot>();
+
+        list.add(new Snapshot(InventoryEvent.ResourceType.VIRTUAL_MACHINE, Instance.INSTANCE, "state"));
+        list.add(new Snapshot(InventoryEvent.ResourceType.VOLUME, Storage.STORAGE_VOLUME, "status"));
+        list.add(new Snapshot(InventoryEvent.ResourceType.FIREWALL, SecurityList.SECURITY_LIST, null));
+        snapshots = Collections.unmodifiableList(list);
+        this.cloud = cloud;
+        scheduler = new ScheduledThreadPoolExecutor(1, new NimbulaThreadFactory("nimbula-inventory-watcher"));
+        scheduler.setKeepAliveTime(1L, TimeUnit.MINUTES);
+        scheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Registers a listener, starting the watcher if it is not already running.
+     * @param listener the listener to notify of inventory changes
+     */
+    public synchronized void addListener(@Nonnull Listener listener) {
+        listeners.addIfAbsent(listener);
+        if( task == null ) {
+            schedule();
+        }
+    }
+
+    static private long fingerprint(@Nonnull JSONObject ob) {
+        ArrayList<String> keys = new ArrayList<String>();
+        Iterator<?> it = ob.keys();
+        long hash = 17L;
+
+        while( it.hasNext() ) {
+            keys.add(String.valueOf(it.next()));
+        }
+        Collections.sort(keys);
+        for( String key : keys ) {
+            Object value = ob.opt(key);
+
+            hash = 31L * hash + key.hashCode();
+            hash = 31L * hash + (value == null ? 0 : value.toString().hashCode());
+        }
+        return hash;
+    }
+
+    public synchronized @Nonnegative long getInterval() {
+        return interval;
+    }
+
+    private void poll() {
+        for( Snapshot snapshot : snapshots ) {
+            try {
+                poll(snapshot);
+            }
+            catch( Throwable t ) {
+                logger.warn("Failed to poll " + snapshot.resource + " inventory: " + t.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void poll(@Nonnull Snapshot snapshot) throws CloudException, InternalException, JSONException {
+        NimbulaMethod method = new NimbulaMethod(cloud, snapshot.resource);
+        long now = System.currentTimeMillis();
+
+        method.list();
+
+        JSONArray array = method.getResponseBody().getJSONArray("result");
+        HashMap<String,Long> current = new HashMap<String,Long>();
+        HashMap<String,String> states = new HashMap<String,String>();
+
+        for( int i=0; i<array.length(); i++ ) {
+            JSONObject ob = array.getJSONObject(i);
+
+            if( !ob.has("name") ) {
+                continue;
+            }
+            String name = ob.getString("name");
+
+            current.put(name, fingerprint(ob));
+            if( snapshot.stateField != null && ob.has(snapshot.stateField) ) {
+                states.put(name, ob.getString(snapshot.stateField));
+            }
+        }
+        Map<String,Long> previous = snapshot.fingerprints;
+
+        snapshot.fingerprints = current;
+        if( previous == null ) {
+            return;
+        }
+        for( Map.Entry<String,Long> entry : current.entrySet() ) {
+            Long old = previous.get(entry.getKey());
+
+            if( old == null ) {
+                publish(new InventoryEvent(snapshot.resourceType, InventoryEvent.Action.CREATED, entry.getKey(), states.get(entry.getKey()), now));
+            }
+            else if( !old.equals(entry.getValue()) ) {
+                publish(new InventoryEvent(snapshot.resourceType, InventoryEvent.Action.CHANGED, entry.getKey(), states.get(entry.getKey()), now));
+            }
+        }
+        for( String name : previous.keySet() ) {
+            if( !current.containsKey(name) ) {
+                publish(new InventoryEvent(snapshot.resourceType, InventoryEvent.Action.DELETED, name, null, now));
+            }
+        }
+    }
+
+    private void publish(@Nonnull InventoryEvent event) {
+        for( Listener listener : listeners ) {
+            try {
+                listener.inventoryChanged(event);
+            }
+            catch( Throwable t ) {
+                logger.error("Inventory listener failed on " + event + ": " + t.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a listener, stopping the watcher and discarding its snapshots when no listeners remain.
+     * @param listener the listener to remove
+     */
+    public synchronized void removeListener(@Nonnull Listener listener) {
+        listeners.remove(listener);
+        if( listeners.isEmpty() && task != null ) {
+            task.cancel(false);
+            task = null;
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for( Snapshot snapshot : snapshots ) {
+                        snapshot.fingerprints = null;
+                    }
+                }
+            });
+        }
+    }
+
+    private void schedule() {
+        task = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Changes how often each resource type is listed. Takes effect immediately if the watcher is running.
+     * @param interval the polling interval in milliseconds
+     */
+    public synchronized void setInterval(@Nonnegative long interval) {
+        this.interval = Math.max(CalendarWrapper.SECOND, interval);
+        if( task != null ) {
+            task.cancel(false);
+            schedule();
+        }
+    }
+}
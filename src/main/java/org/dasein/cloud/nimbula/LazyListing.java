@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.util.CalendarWrapper;
+import org.json.JSONException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Names-only listing of a resource built from the directory form of the Nimbula API. Each name becomes a
+ * {@link LazyResource} that fetches and maps the full object only when it is first accessed. Handles are grouped
+ * into batches in listing order, and touching any handle fetches the details for its whole batch concurrently on
+ * the provider executor, so walking a listing costs one round trip of latency per batch rather than per object.
+ * The thread touching the handle fetches any members no worker has started yet rather than waiting for them.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public abstract class LazyListing<T> {
+    static private final Logger logger = NimbulaDirector.getLogger(LazyListing.class);
+
+    static public final int DEFAULT_BATCH_SIZE = 25;
+
+    static private final int  BATCH_PARALLELISM = 5;
+    static private final long BATCH_TIMEOUT     = CalendarWrapper.MINUTE * 5L;
+
+    class Batch {
+        private final ArrayList<LazyResource<T>> members = new ArrayList<LazyResource<T>>();
+        private boolean                          loaded  = false;
+
+        synchronized void load() throws CloudException, InternalException {
+            if( loaded ) {
+                return;
+            }
+            long timeout = System.currentTimeMillis() + BATCH_TIMEOUT;
+            ArrayList<FutureTask<Void>> fetches = new ArrayList<FutureTask<Void>>();
+            ThrottledExecutor executor = new ThrottledExecutor(cloud.getExecutor(), BATCH_PARALLELISM);
+
+            for( final LazyResource<T> member : members ) {
+                FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            member.resolve(fetch(member.getProviderId()), null);
+                        }
+                        catch( Throwable t ) {
+                            member.resolve(null, t);
+                        }
+                    }
+                }, null);
+
+                fetches.add(task);
+                executor.execute(task);
+            }
+            try {
+                for( FutureTask<Void> task : fetches ) {
+                    // the caller fetches whatever no worker has started, so a batch resolved from a worker thread
+                    // never waits on a saturated pool; this does nothing if a worker already has the task
+                    task.run();
+                    task.get(Math.max(0L, timeout - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+            }
+            catch( TimeoutException e ) {
+                throw new CloudException("Timed out fetching details for " + resource + " batch");
+            }
+            catch( ExecutionException e ) {
+                // each fetch resolves its own member, failures included
+                throw new InternalException(e.getCause());
+            }
+            catch( InterruptedException e ) {
+                throw new InternalException(e);
+            }
+            loaded = true;
+        }
+    }
+
+    private final int             batchSize;
+    private final NimbulaDirector cloud;
+    private final String          resource;
+
+    /**
+     * @param cloud the provider session
+     * @param resource the Nimbula resource being listed, e.g. <code>instance</code>
+     * @param batchSize the number of handles whose details are fetched together
+     */
+    public LazyListing(@Nonnull NimbulaDirector cloud, @Nonnull String resource, @Nonnegative int batchSize) {
+        this.cloud = cloud;
+        this.resource = resource;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Fetches and maps the full object behind one name.
+     * @param providerId the object name
+     * @return the mapped object, or <code>null</code> if it no longer exists
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing the response
+     */
+    protected abstract @Nullable T fetch(@Nonnull String providerId) throws CloudException, InternalException;
+
+    /**
+     * Walks the directory tree of the resource from the account container down and returns a handle for every
+     * object name found. No object details are fetched.
+     * @return lazy handles in directory order
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing a directory listing
+     */
+    public @Nonnull List<LazyResource<T>> list() throws CloudException, InternalException {
+        ProviderContext ctx = cloud.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        String accountPrefix = "/" + ctx.getAccountNumber() + "/";
+        ArrayList<LazyResource<T>> handles = new ArrayList<LazyResource<T>>();
+        LinkedList<String> pending = new LinkedList<String>();
+        Batch batch = null;
+
+        pending.add(null);
+        try {
+            while( !pending.isEmpty() ) {
+                NimbulaMethod method = new NimbulaMethod(cloud, resource);
+
+                if( method.discover(pending.removeFirst()) == 401 ) {
+                    continue;
+                }
+                for( String path : method.getDirectoryEntries() ) {
+                    if( path.endsWith("/") ) {
+                        if( path.startsWith(accountPrefix) && path.length() > accountPrefix.length() ) {
+                            pending.add(path.substring(accountPrefix.length(), path.length() - 1));
+                        }
+                        continue;
+                    }
+                    if( batch == null || batch.members.size() >= batchSize ) {
+                        batch = new Batch();
+                    }
+                    LazyResource<T> handle = new LazyResource<T>(path, batch);
+
+                    batch.members.add(handle);
+                    handles.add(handle);
+                }
+            }
+            return handles;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+}
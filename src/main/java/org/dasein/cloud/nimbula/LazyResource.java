@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Handle on a single object from a {@link LazyListing}. The name is known up front; the full object is fetched
+ * together with the rest of its batch the first time {@link #get()} is called on any member of that batch.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class LazyResource<T> {
+    private final LazyListing<T>.Batch batch;
+    private Throwable                  error;
+    private final String               providerId;
+    private boolean                    resolved = false;
+    private T                          resource;
+
+    LazyResource(@Nonnull String providerId, @Nonnull LazyListing<T>.Batch batch) {
+        this.providerId = providerId;
+        this.batch = batch;
+    }
+
+    /**
+     * Provides the full object, fetching it along with the rest of its batch if it has not yet been loaded.
+     * @return the full object, or <code>null</code> if it was deleted after the listing was taken
+     * @throws CloudException an error occurred fetching this object
+     * @throws InternalException an error occurred processing this object
+     */
+    public @Nullable T get() throws CloudException, InternalException {
+        batch.load();
+        synchronized( this ) {
+            if( error instanceof CloudException ) {
+                throw (CloudException)error;
+            }
+            if( error instanceof InternalException ) {
+                throw (InternalException)error;
+            }
+            if( error != null ) {
+                throw new InternalException(error);
+            }
+            return resource;
+        }
+    }
+
+    public @Nonnull String getProviderId() {
+        return providerId;
+    }
+
+    public synchronized boolean isLoaded() {
+        return resolved;
+    }
+
+    synchronized void resolve(@Nullable T resource, @Nullable Throwable error) {
+        this.resource = resource;
+        this.error = error;
+        this.resolved = true;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return providerId;
+    }
+}
@@ -21,13 +21,22 @@ package org.dasein.cloud.nimbula;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.nimbula.compute.DeviceAllocator;
+import org.dasein.cloud.nimbula.compute.ImageCatalog;
+import org.dasein.cloud.nimbula.compute.ImageListCache;
 import org.dasein.cloud.nimbula.compute.NimbulaComputeServices;
+import org.dasein.cloud.nimbula.compute.StatePoller;
 import org.dasein.cloud.nimbula.network.NimbulaNetworkServices;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
@@ -66,7 +75,17 @@ public class NimbulaDirector extends AbstractCloud {
     }
     
     static private final Logger logger = getLogger(NimbulaDirector.class);
-    
+
+    static public final int DEFAULT_MAX_THREADS = 10;
+
+    private final InventoryCache  cache       = new InventoryCache();
+    private final DeviceAllocator devices     = new DeviceAllocator();
+    private final ImageCatalog    images      = new ImageCatalog();
+    private final ImageListCache  imageLists  = new ImageListCache();
+    private ThreadPoolExecutor    executor    = null;
+    private InventoryWatcher      watcher     = null;
+    private StatePoller           statePoller = null;
+
     public NimbulaDirector() { }
     
     @Override
@@ -90,7 +109,80 @@ public class NimbulaDirector extends AbstractCloud {
     public @Nonnull Site getDataCenterServices() {
         return new Site(this);
     }
+
+    /**
+     * Provides the allocator that hands out volume device indexes for this provider session.
+     * @return the device index allocator for this provider
+     */
+    public @Nonnull DeviceAllocator getDeviceAllocator() {
+        return devices;
+    }
+
+    /**
+     * Provides the bounded worker pool used for concurrent API calls made on behalf of this provider. The pool
+     * size defaults to {@link #DEFAULT_MAX_THREADS} and may be overridden with the <code>nimbulaMaxThreads</code>
+     * custom property. Idle threads are reclaimed.
+     * @return the worker pool for this provider
+     */
+    public synchronized @Nonnull ExecutorService getExecutor() {
+        if( executor == null ) {
+            ProviderContext ctx = getContext();
+            Properties props = (ctx == null ? null : ctx.getCustomProperties());
+            int size = DEFAULT_MAX_THREADS;
+
+            if( props != null ) {
+                String value = props.getProperty("nimbulaMaxThreads");
+
+                if( value != null && value.trim().length() > 0 ) {
+                    try {
+                        size = Math.max(1, Integer.parseInt(value.trim()));
+                    }
+                    catch( NumberFormatException e ) {
+                        logger.warn("Invalid nimbulaMaxThreads value: " + value);
+                    }
+                }
+            }
+            executor = new ThreadPoolExecutor(size, size, 1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new NimbulaThreadFactory("nimbula-worker"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
     
+    /**
+     * Provides the keyword and facet index over the image containers searched by this provider session.
+     * @return the image catalog for this provider
+     */
+    public @Nonnull ImageCatalog getImageCatalog() {
+        return images;
+    }
+
+    /**
+     * Provides the flattened imagelists read by this provider session.
+     * @return the imagelist cache for this provider
+     */
+    public @Nonnull ImageListCache getImageListCache() {
+        return imageLists;
+    }
+
+    /**
+     * Provides the cache of resources seen by this provider session.
+     * @return the inventory cache for this provider
+     */
+    public @Nonnull InventoryCache getInventoryCache() {
+        return cache;
+    }
+
+    /**
+     * Provides the watcher that publishes inventory change events for this provider session.
+     * @return the inventory watcher for this provider
+     */
+    public synchronized @Nonnull InventoryWatcher getInventoryWatcher() {
+        if( watcher == null ) {
+            watcher = new InventoryWatcher(this);
+        }
+        return watcher;
+    }
+
     public @Nonnull String getNamePrefix() throws CloudException, InternalException {
         ProviderContext ctx = getContext();
         
@@ -123,6 +215,18 @@ public class NimbulaDirector extends AbstractCloud {
         return (name == null ? "Nimbula" : name);
     }
     
+    /**
+     * Provides the poller shared by everything in this provider session that needs to wait on virtual machine or
+     * volume state.
+     * @return the state poller for this provider
+     */
+    public synchronized @Nonnull StatePoller getStatePoller() {
+        if( statePoller == null ) {
+            statePoller = new StatePoller(this);
+        }
+        return statePoller;
+    }
+
     @Nonnull String getURL(@Nonnull String resource) throws CloudException {
         ProviderContext ctx = getContext();
         
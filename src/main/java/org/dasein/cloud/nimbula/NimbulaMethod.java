@@ -20,8 +20,11 @@ package org.dasein.cloud.nimbula;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -52,8 +55,10 @@ import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 public class NimbulaMethod {
     static private final Logger logger  = NimbulaDirector.getLogger(NimbulaMethod.class);
@@ -475,7 +480,250 @@ public class NimbulaMethod {
     public @Nonnull JSONObject getResponseBody() throws JSONException {
         return new JSONObject(response);
     }
+
+    /**
+     * Reads the entries of a directory listing fetched with {@link #discover(String)}. Entries ending in
+     * <code>/</code> are containers; all others are object names.
+     * @return the container paths and object names in the listing
+     * @throws JSONException the response is not a valid directory listing
+     */
+    public @Nonnull List<String> getDirectoryEntries() throws JSONException {
+        ArrayList<String> entries = new ArrayList<String>();
+
+        if( response == null ) {
+            return entries;
+        }
+        JSONObject body = new JSONObject(response);
+
+        if( !body.has("result") ) {
+            return entries;
+        }
+        JSONArray array = body.getJSONArray("result");
+
+        for( int i=0; i<array.length(); i++ ) {
+            String path = array.getString(i);
+
+            if( !path.startsWith("/") ) {
+                path = "/" + path;
+            }
+            entries.add(path);
+        }
+        return entries;
+    }
+
+    /**
+     * Tests raw result objects one at a time as a listing response is scanned, so that rejected objects are dropped
+     * as soon as they are parsed.
+     */
+    static public interface ResultFilter {
+        public boolean accept(@Nonnull JSONObject ob) throws JSONException;
+    }
+
+    /**
+     * Parses the objects in the <code>result</code> array of the last response one at a time, keeping only those
+     * accepted by the specified filter. The response body is already buffered in full; what this saves over
+     * {@link #getResponseBody()} is building a <code>JSONArray</code> of the whole listing and holding on to the
+     * rejected objects, which are discarded as soon as the filter has seen them.
+     * @param filter the filter to apply to each object, or <code>null</code> to accept everything
+     * @return the accepted objects in response order
+     * @throws JSONException the response is not valid JSON
+     */
+    public @Nonnull List<JSONObject> getResults(@Nullable ResultFilter filter) throws JSONException {
+        ArrayList<JSONObject> results = new ArrayList<JSONObject>();
+
+        if( response == null ) {
+            return results;
+        }
+        JSONTokener tokener = new JSONTokener(response);
+
+        if( tokener.nextClean() != '{' ) {
+            throw tokener.syntaxError("A JSON object must begin with '{'");
+        }
+        while( true ) {
+            char c = tokener.nextClean();
+
+            if( c == '}' || c == 0 ) {
+                return results;
+            }
+            if( c == ',' ) {
+                continue;
+            }
+            String key = readKey(tokener, c);
+
+            if( key.equals("result") ) {
+                if( tokener.nextClean() != '[' ) {
+                    throw tokener.syntaxError("The result must be an array");
+                }
+                while( true ) {
+                    c = tokener.nextClean();
+                    if( c == ']' ) {
+                        break;
+                    }
+                    if( c == ',' ) {
+                        continue;
+                    }
+                    tokener.back();
+                    Object value = tokener.nextValue();
+
+                    if( value instanceof JSONObject && (filter == null || filter.accept((JSONObject)value)) ) {
+                        results.add((JSONObject)value);
+                    }
+                }
+            }
+            else {
+                skipValue(tokener);
+            }
+        }
+    }
     
+    /**
+     * Extracts just two fields from each object in the <code>result</code> array of the last response without
+     * building the objects. Every other value is skipped over in the raw text, which makes this far cheaper than
+     * {@link #getResponseBody()} for status listings over large containers.
+     * @param keyField the field whose value keys the projection, usually <code>name</code>
+     * @param valueField the field to extract for each key, or <code>null</code> to extract keys only
+     * @return the extracted values keyed by the key field, in response order
+     * @throws JSONException the response is not valid JSON
+     */
+    public @Nonnull Map<String,String> getResultProjection(@Nonnull String keyField, @Nullable String valueField) throws JSONException {
+        return getResultProjection(response, keyField, valueField);
+    }
+
+    static @Nonnull Map<String,String> getResultProjection(@Nullable String response, @Nonnull String keyField, @Nullable String valueField) throws JSONException {
+        LinkedHashMap<String,String> projection = new LinkedHashMap<String,String>();
+
+        if( response == null ) {
+            return projection;
+        }
+        JSONTokener tokener = new JSONTokener(response);
+
+        if( tokener.nextClean() != '{' ) {
+            throw tokener.syntaxError("A JSON object must begin with '{'");
+        }
+        while( true ) {
+            char c = tokener.nextClean();
+
+            if( c == '}' || c == 0 ) {
+                return projection;
+            }
+            if( c == ',' ) {
+                continue;
+            }
+            String key = readKey(tokener, c);
+
+            if( key.equals("result") ) {
+                if( tokener.nextClean() != '[' ) {
+                    throw tokener.syntaxError("The result must be an array");
+                }
+                while( true ) {
+                    c = tokener.nextClean();
+                    if( c == ']' ) {
+                        break;
+                    }
+                    if( c == ',' ) {
+                        continue;
+                    }
+                    if( c != '{' ) {
+                        tokener.back();
+                        skipValue(tokener);
+                        continue;
+                    }
+                    String id = null, value = null;
+
+                    while( true ) {
+                        c = tokener.nextClean();
+                        if( c == '}' ) {
+                            break;
+                        }
+                        if( c == ',' ) {
+                            continue;
+                        }
+                        String field = readKey(tokener, c);
+
+                        if( field.equals(keyField) ) {
+                            id = readScalar(tokener);
+                        }
+                        else if( field.equals(valueField) ) {
+                            value = readScalar(tokener);
+                        }
+                        else {
+                            skipValue(tokener);
+                        }
+                    }
+                    if( id != null ) {
+                        projection.put(id, value);
+                    }
+                }
+            }
+            else {
+                skipValue(tokener);
+            }
+        }
+    }
+
+    static private @Nonnull String readKey(@Nonnull JSONTokener tokener, char c) throws JSONException {
+        if( c != '"' && c != '\'' ) {
+            throw tokener.syntaxError("Expected a quoted key");
+        }
+        String key = tokener.nextString(c);
+
+        if( tokener.nextClean() != ':' ) {
+            throw tokener.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    static private @Nullable String readScalar(@Nonnull JSONTokener tokener) throws JSONException {
+        char c = tokener.nextClean();
+
+        if( c == '"' || c == '\'' ) {
+            return tokener.nextString(c);
+        }
+        tokener.back();
+        if( c == '{' || c == '[' ) {
+            skipValue(tokener);
+            return null;
+        }
+        Object value = tokener.nextValue();
+
+        return (JSONObject.NULL.equals(value) ? null : value.toString());
+    }
+
+    static private void skipValue(@Nonnull JSONTokener tokener) throws JSONException {
+        char c = tokener.nextClean();
+
+        if( c == '"' || c == '\'' ) {
+            tokener.nextString(c);
+        }
+        else if( c == '{' || c == '[' ) {
+            int depth = 1;
+
+            while( depth > 0 ) {
+                c = tokener.next();
+                if( c == 0 ) {
+                    throw tokener.syntaxError("Unterminated object or array");
+                }
+                else if( c == '"' || c == '\'' ) {
+                    tokener.nextString(c);
+                }
+                else if( c == '{' || c == '[' ) {
+                    depth++;
+                }
+                else if( c == '}' || c == ']' ) {
+                    depth--;
+                }
+            }
+        }
+        else {
+            while( c != 0 && c != ',' && c != '}' && c != ']' ) {
+                c = tokener.next();
+            }
+            if( c != 0 ) {
+                tokener.back();
+            }
+        }
+    }
+
     private @Nonnull String getUrl(@Nonnull String endpoint, @Nullable String id) throws CloudException, InternalException {
         ProviderContext ctx = cloud.getContext();
         
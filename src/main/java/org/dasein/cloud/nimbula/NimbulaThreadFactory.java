@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates named daemon threads for the background work done on behalf of a Nimbula provider so that pollers and
+ * worker pools never keep a JVM alive on their own.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class NimbulaThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final String        prefix;
+
+    public NimbulaThreadFactory(@Nonnull String prefix) { this.prefix = prefix; }
+
+    @Override
+    public @Nonnull Thread newThread(@Nonnull Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+
+        t.setDaemon(true);
+        return t;
+    }
+}
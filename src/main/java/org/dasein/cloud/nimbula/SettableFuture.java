@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link Future} that is completed explicitly by whatever component is tracking the underlying operation,
+ * typically a poller or a worker in the provider's executor. Listeners may be attached to chain follow-up work
+ * without blocking a thread on {@link #get()}.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class SettableFuture<T> implements Future<T> {
+    static private final Logger logger = NimbulaDirector.getLogger(SettableFuture.class);
+
+    private final CountDownLatch      latch     = new CountDownLatch(1);
+    private final ArrayList<Runnable> listeners = new ArrayList<Runnable>();
+
+    private boolean   cancelled = false;
+    private boolean   done      = false;
+    private Throwable error     = null;
+    private T         result    = null;
+
+    public SettableFuture() { }
+
+    /**
+     * Registers a listener to be run once this future completes, fails, or is cancelled. If the future is already
+     * done, the listener runs immediately in the calling thread; otherwise it runs in the thread that completes it.
+     * @param listener the listener to run
+     */
+    public void addListener(@Nonnull Runnable listener) {
+        synchronized( this ) {
+            if( !done ) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    /**
+     * Waits up to the specified time for the result, translating failures back into the Dasein Cloud exceptions
+     * that produced them.
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return the result of the operation
+     * @throws CloudException the operation failed in the cloud or did not complete in time
+     * @throws InternalException the operation failed locally or the wait was interrupted
+     */
+    public @Nullable T await(@Nonnegative long timeoutMillis) throws CloudException, InternalException {
+        try {
+            return get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch( TimeoutException e ) {
+            throw new CloudException("The system timed out waiting for the operation to complete");
+        }
+        catch( CancellationException e ) {
+            throw new InternalException("The operation was cancelled");
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            cancelled = true;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Completes this future with the specified result. Has no effect if the future is already done.
+     * @param value the result of the operation
+     * @return true if this call completed the future
+     */
+    public boolean complete(@Nullable T value) {
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            result = value;
+        }
+        finish();
+        return true;
+    }
+
+    /**
+     * Completes this future with an error. Has no effect if the future is already done.
+     * @param t the cause of the failure
+     * @return true if this call completed the future
+     */
+    public boolean fail(@Nonnull Throwable t) {
+        synchronized( this ) {
+            if( done ) {
+                return false;
+            }
+            error = t;
+        }
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        ArrayList<Runnable> toRun;
+
+        synchronized( this ) {
+            done = true;
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        latch.countDown();
+        for( Runnable listener : toRun ) {
+            notify(listener);
+        }
+    }
+
+    @Override
+    public @Nullable T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getNow();
+    }
+
+    @Override
+    public @Nullable T get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if( !latch.await(timeout, unit) ) {
+            throw new TimeoutException();
+        }
+        return getNow();
+    }
+
+    /**
+     * @return the error with which this future failed, or <code>null</code> if it has not failed
+     */
+    public synchronized @Nullable Throwable getError() {
+        return error;
+    }
+
+    private synchronized @Nullable T getNow() throws ExecutionException {
+        if( cancelled ) {
+            throw new CancellationException();
+        }
+        if( error != null ) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private void notify(@Nonnull Runnable listener) {
+        try {
+            listener.run();
+        }
+        catch( Throwable t ) {
+            logger.error("Future listener failed: " + t.getMessage());
+            if( logger.isDebugEnabled() ) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
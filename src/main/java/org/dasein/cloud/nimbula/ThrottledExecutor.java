@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Runs tasks on a shared executor while allowing no more than a fixed number of them to be in flight at once.
+ * Tasks over the limit are queued locally and handed to the underlying executor as earlier ones finish, so bulk
+ * operations get bounded parallelism without tying up pool threads waiting on permits.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class ThrottledExecutor implements Executor {
+    private final Executor             delegate;
+    private final int                  limit;
+    private final LinkedList<Runnable> queue   = new LinkedList<Runnable>();
+    private int                        running = 0;
+
+    public ThrottledExecutor(@Nonnull Executor delegate, @Nonnegative int limit) {
+        this.delegate = delegate;
+        this.limit = Math.max(1, limit);
+    }
+
+    @Override
+    public void execute(@Nonnull Runnable task) {
+        synchronized( this ) {
+            if( running >= limit ) {
+                queue.add(task);
+                return;
+            }
+            running++;
+        }
+        submit(task);
+    }
+
+    private void next() {
+        Runnable task;
+
+        synchronized( this ) {
+            task = queue.poll();
+            if( task == null ) {
+                running--;
+                return;
+            }
+        }
+        submit(task);
+    }
+
+    private void submit(@Nonnull final Runnable task) {
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        next();
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            next();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Hash index over a <code>storageattachment</code> listing, keyed both by volume and by instance. Building it is
+ * a single pass over the listing, after which joining volumes to their attachments and asking which volumes are
+ * attached to a given instance are constant-time lookups.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class AttachmentIndex {
+    static public class Attachment {
+        private final String attachmentId;
+        private final int    index;
+        private final String instanceId;
+        private final String volumeId;
+
+        Attachment(@Nonnull String attachmentId, @Nonnull String volumeId, @Nonnull String instanceId, @Nonnegative int index) {
+            this.attachmentId = attachmentId;
+            this.volumeId = volumeId;
+            this.instanceId = instanceId;
+            this.index = index;
+        }
+
+        public @Nonnull String getAttachmentId() {
+            return attachmentId;
+        }
+
+        public @Nonnegative int getIndex() {
+            return index;
+        }
+
+        public @Nonnull String getInstanceId() {
+            return instanceId;
+        }
+
+        public @Nonnull String getVolumeId() {
+            return volumeId;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return (volumeId + " -> " + instanceId + " [" + index + "]");
+        }
+    }
+
+    /**
+     * Indexes the raw <code>result</code> array of a <code>storageattachment</code> listing. Entries missing a
+     * name, volume or instance are skipped. If a volume appears more than once, the first entry wins.
+     * @param rawAttachments the raw attachment listing
+     * @param listedAt when the listing was requested
+     * @return the index
+     * @throws JSONException an attachment entry is malformed
+     */
+    static @Nonnull AttachmentIndex fromJSON(@Nonnull JSONArray rawAttachments, @Nonnegative long listedAt) throws JSONException {
+        AttachmentIndex idx = new AttachmentIndex(listedAt);
+
+        for( int i=0; i<rawAttachments.length(); i++ ) {
+            JSONObject json = rawAttachments.getJSONObject(i);
+            String id = (json.has("name") ? json.getString("name") : null);
+            String volumeId = (json.has("storage_volume_name") ? json.getString("storage_volume_name") : null);
+            String instanceId = (json.has("instance_name") ? json.getString("instance_name") : null);
+
+            if( id == null || volumeId == null || instanceId == null || idx.byVolume.containsKey(volumeId) ) {
+                continue;
+            }
+            idx.add(new Attachment(id, volumeId, instanceId, json.has("index") ? json.getInt("index") : 1));
+        }
+        return idx;
+    }
+
+    private final HashMap<String,List<Attachment>> byInstance = new HashMap<String,List<Attachment>>();
+    private final HashMap<String,Attachment>       byVolume   = new HashMap<String,Attachment>();
+    private final long                             timestamp;
+
+    private AttachmentIndex(@Nonnegative long timestamp) { this.timestamp = timestamp; }
+
+    private void add(@Nonnull Attachment attachment) {
+        List<Attachment> list = byInstance.get(attachment.getInstanceId());
+
+        if( list == null ) {
+            list = new ArrayList<Attachment>();
+            byInstance.put(attachment.getInstanceId(), list);
+        }
+        list.add(attachment);
+        byVolume.put(attachment.getVolumeId(), attachment);
+    }
+
+    /**
+     * @param volumeId the volume of interest
+     * @return the volume's attachment, or <code>null</code> if it is not attached
+     */
+    public @Nullable Attachment getAttachment(@Nonnull String volumeId) {
+        return byVolume.get(volumeId);
+    }
+
+    /**
+     * @param instanceId the instance of interest
+     * @return the attachments of every volume attached to the instance
+     */
+    public @Nonnull Collection<Attachment> getAttachments(@Nonnull String instanceId) {
+        List<Attachment> list = byInstance.get(instanceId);
+
+        if( list == null ) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return when the attachment listing behind this index was requested
+     */
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    public @Nonnegative int size() {
+        return byVolume.size();
+    }
+}
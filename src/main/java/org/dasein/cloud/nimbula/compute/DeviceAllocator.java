@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Hands out volume attachment indexes per instance. Free indexes are those neither present in the attachment
+ * index nor held by this allocator. An index is held from the moment it is reserved until an attachment listing
+ * taken after the attach completed is consulted, which covers both attaches still in flight and attaches that
+ * the caller's (possibly cached) attachment index is too old to show. Concurrent attaches through one provider
+ * session therefore never pick the same index on the same instance.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class DeviceAllocator {
+    static public final int MAXIMUM_DEVICE_INDEX = 19;
+
+    static private class Hold {
+        // when the attach finished, or Long.MAX_VALUE while it is still in flight
+        public long settledAt = Long.MAX_VALUE;
+    }
+
+    private final HashMap<String,HashMap<Integer,Hold>> holds = new HashMap<String,HashMap<Integer,Hold>>();
+
+    public DeviceAllocator() { }
+
+    /**
+     * Retires the holds on an instance that the attachment index is new enough to show, forgetting the instance
+     * once nothing is held on it.
+     * @param instanceId the instance of interest
+     * @param attachments the attachment index to consult
+     * @return the holds still in effect, or <code>null</code> if there are none
+     */
+    private @Nullable HashMap<Integer,Hold> getHolds(@Nonnull String instanceId, @Nonnull AttachmentIndex attachments) {
+        HashMap<Integer,Hold> current = holds.get(instanceId);
+
+        if( current == null ) {
+            return null;
+        }
+        Iterator<Map.Entry<Integer,Hold>> it = current.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().getValue().settledAt < attachments.getTimestamp() ) {
+                it.remove();
+            }
+        }
+        if( current.isEmpty() ) {
+            holds.remove(instanceId);
+            return null;
+        }
+        return current;
+    }
+
+    private @Nonnull HashSet<Integer> getUsed(@Nonnull String instanceId, @Nonnull AttachmentIndex attachments) {
+        HashMap<Integer,Hold> current = getHolds(instanceId, attachments);
+        HashSet<Integer> used = new HashSet<Integer>();
+
+        if( current != null ) {
+            used.addAll(current.keySet());
+        }
+        for( AttachmentIndex.Attachment a : attachments.getAttachments(instanceId) ) {
+            used.add(a.getIndex());
+        }
+        return used;
+    }
+
+    /**
+     * Lists the indexes currently free on an instance.
+     * @param instanceId the instance of interest
+     * @param attachments the attachment index to consult
+     * @return the free indexes in ascending order
+     */
+    public synchronized @Nonnull List<Integer> listFree(@Nonnull String instanceId, @Nonnull AttachmentIndex attachments) {
+        HashSet<Integer> used = getUsed(instanceId, attachments);
+        ArrayList<Integer> free = new ArrayList<Integer>();
+
+        for( int i=1; i<=MAXIMUM_DEVICE_INDEX; i++ ) {
+            if( !used.contains(i) ) {
+                free.add(i);
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Reserves the lowest free index on an instance.
+     * @param instanceId the instance being attached to
+     * @param attachments the attachment index to consult
+     * @return the reserved index
+     * @throws CloudException no index is free on the instance
+     */
+    public synchronized @Nonnegative int reserve(@Nonnull String instanceId, @Nonnull AttachmentIndex attachments) throws CloudException {
+        HashSet<Integer> used = getUsed(instanceId, attachments);
+
+        for( int i=1; i<=MAXIMUM_DEVICE_INDEX; i++ ) {
+            if( !used.contains(i) ) {
+                hold(instanceId, i);
+                return i;
+            }
+        }
+        throw new CloudException("No free device index remains on " + instanceId);
+    }
+
+    /**
+     * Reserves a specific index on an instance.
+     * @param instanceId the instance being attached to
+     * @param index the index requested
+     * @param attachments the attachment index to consult
+     * @throws CloudException the index is already in use or held by another attach
+     */
+    public synchronized void reserve(@Nonnull String instanceId, @Nonnegative int index, @Nonnull AttachmentIndex attachments) throws CloudException {
+        if( getUsed(instanceId, attachments).contains(index) ) {
+            throw new CloudException("Device index " + index + " is already in use on " + instanceId);
+        }
+        hold(instanceId, index);
+    }
+
+    private void hold(@Nonnull String instanceId, @Nonnegative int index) {
+        HashMap<Integer,Hold> current = holds.get(instanceId);
+
+        if( current == null ) {
+            current = new HashMap<Integer,Hold>();
+            holds.put(instanceId, current);
+        }
+        current.put(index, new Hold());
+    }
+
+    /**
+     * Ends a reservation. A failed attach frees the index immediately; a successful one keeps holding it until an
+     * attachment listing taken after this call is consulted.
+     * @param instanceId the instance that was attached to
+     * @param index the reserved index
+     * @param attached true if the attach succeeded
+     */
+    public synchronized void release(@Nonnull String instanceId, @Nonnegative int index, boolean attached) {
+        HashMap<Integer,Hold> current = holds.get(instanceId);
+
+        if( current == null ) {
+            return;
+        }
+        if( attached ) {
+            Hold hold = current.get(index);
+
+            if( hold != null ) {
+                hold.settledAt = System.currentTimeMillis();
+            }
+        }
+        else {
+            current.remove(index);
+            if( current.isEmpty() ) {
+                holds.remove(instanceId);
+            }
+        }
+    }
+}
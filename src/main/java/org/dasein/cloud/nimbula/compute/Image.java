@@ -19,8 +19,16 @@
 package org.dasein.cloud.nimbula.compute;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AsynchronousTask;
@@ -41,11 +49,12 @@ import org.dasein.cloud.compute.MachineImageSupport;
 import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.nimbula.AsyncResults;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.LazyListing;
+import org.dasein.cloud.nimbula.LazyResource;
 import org.dasein.cloud.nimbula.NimbulaDirector;
 import org.dasein.cloud.nimbula.NimbulaMethod;
-import org.dasein.util.Jiterator;
-import org.dasein.util.JiteratorPopulator;
-import org.dasein.util.PopulatorThread;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -96,14 +105,38 @@ public class Image implements MachineImageSupport {
 
     @Override
     public MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
+        return getImage(providerImageId, 0L);
+    }
+
+    /**
+     * Fetches a machine image, accepting a copy from the provider's inventory cache if it is no older than the
+     * specified staleness.
+     * @param providerImageId the machine image to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the machine image, or <code>null</code> if it does not exist
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing the response
+     */
+    public @Nullable MachineImage getImage(@Nonnull String providerImageId, @Nonnegative long maxStaleness) throws CloudException, InternalException {
+        InventoryCache cache = cloud.getInventoryCache();
+        MachineImage image = cache.get(MachineImage.class, providerImageId, maxStaleness);
+
+        if( image != null ) {
+            return image;
+        }
         NimbulaMethod method = new NimbulaMethod(cloud, MACHINEIMAGE);
         int code = method.get(providerImageId);
 
         if( code == 404 || code == 401 ) {
+            cache.remove(MachineImage.class, providerImageId);
             return null;
         }
         try {
-            return toMachineImage(method.getResponseBody());
+            image = toMachineImage(method.getResponseBody());
+            if( image != null ) {
+                cache.put(MachineImage.class, providerImageId, image);
+            }
+            return image;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -121,30 +154,27 @@ public class Image implements MachineImageSupport {
     }
 
     public @Nullable String getMachineImageId(@Nonnull String imagelist, @Nonnegative int entryNumber) throws CloudException, InternalException {
-        NimbulaMethod method = new NimbulaMethod(cloud, Image.IMAGELIST);
-        
-        method.get(imagelist);
-        try {
-            JSONObject item = method.getResponseBody();
-            JSONArray entries = item.getJSONArray("entries");
+        ImageListCache cache = cloud.getImageListCache();
+        ImageListCache.ImageList list = cache.get(imagelist);
 
-            for( int i=0; i<entries.length(); i++ ) {
-                JSONObject entry = entries.getJSONObject(i);
-                JSONArray images = entry.getJSONArray("machineimages");
+        if( list == null ) {
+            NimbulaMethod method = new NimbulaMethod(cloud, Image.IMAGELIST);
+            long requestedAt = System.currentTimeMillis();
 
-                if( images.length() >= entryNumber ) {
-                    return images.getString(entryNumber-1);
+            method.get(imagelist);
+            try {
+                list = ImageListCache.ImageList.fromJSON(method.getResponseBody(), requestedAt);
+            }
+            catch( JSONException e ) {
+                if( logger.isDebugEnabled() ) {
+                    logger.error("Error parsing JSON: " + e.getMessage());
+                    e.printStackTrace();
                 }
+                throw new InternalException(e);
             }
-            return null;
+            cache.put(list);
         }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
-        }        
+        return list.getMachineImageId(entryNumber);
     }
     
     @Override
@@ -197,56 +227,75 @@ public class Image implements MachineImageSupport {
         return status;
     }
 
+    /**
+     * Lists the names of every machine image in the account using the directory form of the API. Each handle
+     * fetches the full machine image, together with the rest of its batch, only when accessed.
+     * @param batchSize the number of handles whose details are fetched together
+     * @return lazy handles on the machine images in the account
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing a directory listing
+     */
+    public @Nonnull List<LazyResource<MachineImage>> listImageHandles(@Nonnegative int batchSize) throws CloudException, InternalException {
+        return new LazyListing<MachineImage>(cloud, MACHINEIMAGE, batchSize) {
+            @Override
+            protected @Nullable MachineImage fetch(@Nonnull String providerId) throws CloudException, InternalException {
+                return getImage(providerId);
+            }
+        }.list();
+    }
+
     @Override
     public @Nonnull Iterable<MachineImage> listImages(@Nonnull ImageClass cls) throws CloudException, InternalException {
-        NimbulaMethod method = new NimbulaMethod(cloud, MACHINEIMAGE);
-
-        method.list();
-        try {
-            ArrayList<MachineImage> images = new ArrayList<MachineImage>();
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-
-            for( int i=0; i<array.length(); i++ ) {
-                MachineImage image = toMachineImage(array.getJSONObject(i));
-
-                if( image != null ) {
-                    images.add(image);
-                }
-            }
-            return images;
-        }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
+        if( !ImageClass.MACHINE.equals(cls) ) {
+            return Collections.emptyList();
         }
+        return listContainer(null);
     }
 
     @Override
     public @Nonnull Iterable<MachineImage> listImages(@Nonnull ImageClass cls, @Nonnull String ownedBy) throws CloudException, InternalException {
-        if( !ownedBy.endsWith("/") ){
-            ownedBy = ownedBy + "/";
+        if( !ImageClass.MACHINE.equals(cls) ) {
+            return Collections.emptyList();
         }
+        return listContainer(ownedBy);
+    }
+
+    /**
+     * Lists the machine images in a single container.
+     * @param container the container path, or <code>null</code> for the account container
+     * @return the machine images in the container
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing the response
+     */
+    private @Nonnull List<MachineImage> listContainer(@Nullable String container) throws CloudException, InternalException {
         NimbulaMethod method = new NimbulaMethod(cloud, MACHINEIMAGE);
-        int code = method.get(ownedBy);
 
-        if( code == 401 ) {
-            return Collections.emptyList();
+        if( container == null ) {
+            method.list();
+        }
+        else {
+            if( !container.endsWith("/") ){
+                container = container + "/";
+            }
+            int code = method.get(container);
+
+            if( code == 401 ) {
+                return Collections.emptyList();
+            }
         }
         try {
-            ArrayList<MachineImage> images = new ArrayList<MachineImage>();
+            LinkedHashMap<String,MachineImage> images = new LinkedHashMap<String,MachineImage>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
 
             for( int i=0; i<array.length(); i++ ) {
                 MachineImage image = toMachineImage(array.getJSONObject(i));
 
                 if( image != null ) {
-                    images.add(image);
+                    images.put(image.getProviderMachineImageId(), image);
                 }
             }
-            return images;
+            cloud.getInventoryCache().putAll(MachineImage.class, images);
+            return new ArrayList<MachineImage>(images.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -257,6 +306,15 @@ public class Image implements MachineImageSupport {
         }
     }
 
+    private @Nonnull InventoryCache.Loader<List<MachineImage>> getContainerLoader(final @Nullable String container) {
+        return new InventoryCache.Loader<List<MachineImage>>() {
+            @Override
+            public List<MachineImage> load() throws CloudException, InternalException {
+                return listContainer(container);
+            }
+        };
+    }
+
     @Override
     @Deprecated
     public @Nonnull Iterable<MachineImage> listMachineImages() throws CloudException, InternalException {
@@ -307,47 +365,6 @@ public class Image implements MachineImageSupport {
         return new String[0];
     }
 
-    private boolean matches(MachineImage image, String keyword, Platform platform, Architecture architecture) {
-        if( architecture != null && !architecture.equals(image.getArchitecture()) ) {
-            return false;
-        }
-        if( platform != null && !platform.equals(Platform.UNKNOWN) ) {
-            Platform mine = image.getPlatform();
-            
-            if( platform.isWindows() && !mine.isWindows() ) {
-                return false;
-            }
-            if( platform.isUnix() && !mine.isUnix() ) {
-                return false;
-            }
-            if( platform.isBsd() && !mine.isBsd() ) {
-                return false;
-            }
-            if( platform.isLinux() && !mine.isLinux() ) {
-                return false;
-            }
-            if( platform.equals(Platform.UNIX) ) {
-                if( !mine.isUnix() ) {
-                    return false;
-                }
-            }
-            else if( !platform.equals(mine) ) {
-                return false;
-            }
-        }
-        if( keyword != null ) {
-            keyword = keyword.toLowerCase();
-            if( !image.getDescription().toLowerCase().contains(keyword) ) {
-                if( !image.getName().toLowerCase().contains(keyword) ) {
-                    if( !image.getProviderMachineImageId().toLowerCase().contains(keyword) ) {
-                        return false;
-                    }
-                }
-            }
-        }
-        return true;
-    }
-
     @Override
     public void remove(@Nonnull String machineImageId) throws CloudException, InternalException {
         remove(machineImageId, false);
@@ -358,6 +375,9 @@ public class Image implements MachineImageSupport {
         NimbulaMethod method = new NimbulaMethod(cloud, MACHINEIMAGE);
 
         method.delete(providerImageId);
+        cloud.getInventoryCache().remove(MachineImage.class, providerImageId);
+        cloud.getImageCatalog().invalidate();
+        cloud.getImageListCache().invalidateAll();
     }
 
     @Override
@@ -382,65 +402,123 @@ public class Image implements MachineImageSupport {
 
     @Override
     public @Nonnull Iterable<MachineImage> searchImages(final @Nullable String accountNumber, final @Nullable String keyword, final @Nullable Platform platform, final @Nullable Architecture architecture, final @Nullable ImageClass... imageClasses) throws CloudException, InternalException {
-        PopulatorThread<MachineImage> populator;
+        if( !includesMachineImages(imageClasses) ) {
+            return Collections.emptyList();
+        }
+        return search(Collections.singletonList(accountNumber), keyword, platform, architecture);
+    }
 
-        cloud.hold();
-        populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-            @Override
-            public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                ImageClass[] classes = ((imageClasses == null || imageClasses.length < 1) ? ImageClass.values() : imageClasses);
+    @Override
+    public @Nonnull Iterable<MachineImage> searchPublicImages(final @Nullable String keyword, final @Nullable Platform platform, final @Nullable Architecture architecture, final @Nullable ImageClass... imageClasses) throws CloudException, InternalException {
+        if( !includesMachineImages(imageClasses) ) {
+            return Collections.emptyList();
+        }
+        return search(Arrays.asList(null, "/nimbula/public/"), keyword, platform, architecture);
+    }
 
-                for( ImageClass cls : classes ) {
-                    try {
-                        Iterable<MachineImage> images = (accountNumber == null ? listImages(cls) : listImages(cls, accountNumber));
+    // every Nimbula image is a machine image, so any other class matches nothing
+    private boolean includesMachineImages(@Nullable ImageClass ... imageClasses) {
+        if( imageClasses == null || imageClasses.length < 1 ) {
+            return true;
+        }
+        for( ImageClass cls : imageClasses ) {
+            if( ImageClass.MACHINE.equals(cls) ) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                        for( MachineImage image : images ) {
-                            if( matches(image, keyword, platform, architecture) ) {
-                                iterator.push(image);
-                            }
-                        }
-                    }
-                    finally {
-                        cloud.release();
+    /**
+     * Searches a set of image containers through the session's {@link ImageCatalog}. When every container is already
+     * indexed the search is answered directly from memory. Otherwise each distinct container is loaded once, all of
+     * them concurrently on the provider executor, and matching images are pushed to the caller as each container
+     * becomes available. An image visible through more than one container is returned once. The pending results
+     * are an {@link AsyncResults}, so a caller that stops reading early can close them to skip outstanding loads.
+     * @param containers the containers to search; <code>null</code> stands for the account container
+     * @param keyword a keyword to match against the image name, description or ID, if any
+     * @param platform the platform to match, if any
+     * @param architecture the architecture to match, if any
+     * @return the matching images
+     * @throws CloudException an error occurred in the cloud
+     * @throws InternalException an error occurred processing a listing
+     */
+    private @Nonnull Iterable<MachineImage> search(@Nonnull Collection<String> containers, final @Nullable String keyword, final @Nullable Platform platform, final @Nullable Architecture architecture) throws CloudException, InternalException {
+        final LinkedHashSet<String> distinct = new LinkedHashSet<String>();
+
+        final ImageCatalog catalog = cloud.getImageCatalog();
+        boolean current = true;
+
+        for( String container : containers ) {
+            if( container != null && !container.endsWith("/") ) {
+                container = container + "/";
+            }
+            distinct.add(container);
+            current = (current && catalog.isCurrent(container));
+        }
+        if( current ) {
+            HashSet<String> seen = new HashSet<String>();
+            ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+            for( String container : distinct ) {
+                for( MachineImage image : catalog.search(container, keyword, platform, architecture, getContainerLoader(container), cloud.getExecutor()) ) {
+                    if( seen.add(image.getProviderMachineImageId()) ) {
+                        matches.add(image);
                     }
                 }
             }
-        });
-        populator.populate();
-        return populator.getResult();
-    }
-
-    @Override
-    public @Nonnull Iterable<MachineImage> searchPublicImages(final @Nullable String keyword, final @Nullable Platform platform, final @Nullable Architecture architecture, final @Nullable ImageClass... imageClasses) throws CloudException, InternalException {
-        PopulatorThread<MachineImage> populator;
+            return matches;
+        }
+        final AsyncResults<MachineImage> results = new AsyncResults<MachineImage>();
+        final HashSet<String> seen = new HashSet<String>();
+        final AtomicInteger remaining = new AtomicInteger(distinct.size());
 
+        // one hold covers the whole search and is released by whichever container task finishes last
         cloud.hold();
-        populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-            @Override
-            public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                ImageClass[] classes = ((imageClasses == null || imageClasses.length < 1) ? ImageClass.values() : imageClasses);
-
-                for( ImageClass cls : classes ) {
+        for( final String container : distinct ) {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        for( MachineImage image : listImages(cls) ) {
-                            if( matches(image, keyword, platform, architecture) ) {
-                                iterator.push(image);
-                            }
+                        if( results.isCancelled() ) {
+                            return;
                         }
-                        for( MachineImage image : listImages(ImageClass.MACHINE, "/nimbula/public/") ) {
-                            if( matches(image, keyword, platform, architecture) ) {
-                                iterator.push(image);
+                        for( MachineImage image : catalog.search(container, keyword, platform, architecture, getContainerLoader(container), cloud.getExecutor()) ) {
+                            synchronized( seen ) {
+                                if( !seen.add(image.getProviderMachineImageId()) ) {
+                                    continue;
+                                }
+                            }
+                            if( !results.push(image) ) {
+                                return;
                             }
                         }
                     }
+                    catch( Exception e ) {
+                        logger.error("Failed to search images in " + (container == null ? "the account" : container) + ": " + e.getMessage());
+                        results.fail(e);
+                    }
                     finally {
-                        cloud.release();
+                        if( remaining.decrementAndGet() == 0 ) {
+                            results.complete();
+                            cloud.release();
+                        }
                     }
                 }
+            };
+
+            try {
+                cloud.getExecutor().execute(task);
+            }
+            catch( RejectedExecutionException e ) {
+                results.fail(e);
+                if( remaining.decrementAndGet() == 0 ) {
+                    results.complete();
+                    cloud.release();
+                }
             }
-        });
-        populator.populate();
-        return populator.getResult();
+        }
+        return results;
     }
 
     @Override
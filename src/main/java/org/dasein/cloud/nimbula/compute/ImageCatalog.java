@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.NimbulaDirector;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory catalog of the machine images in each image container a provider session has searched. Every
+ * container is indexed once per load: image names, descriptions and IDs are broken into lower-case trigrams
+ * for keyword lookups, and images are grouped by platform and architecture so those criteria are set lookups
+ * rather than per-image comparisons. A container is held for {@link #TIME_TO_LIVE}; once it is older than
+ * {@link #REFRESH_AHEAD} a search answers from the current copy and reloads it in the background.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class ImageCatalog {
+    static private final Logger logger = NimbulaDirector.getLogger(ImageCatalog.class);
+
+    static public final long REFRESH_AHEAD = CalendarWrapper.MINUTE * 2L;
+    static public final long TIME_TO_LIVE  = CalendarWrapper.MINUTE * 15L;
+
+    // ConcurrentHashMap does not accept null keys, so the account container is stored under the empty path
+    static private final String ACCOUNT_CONTAINER = "";
+    static private final int    GRAM_LENGTH       = 3;
+    static private final char   FIELD_SEPARATOR   = '\u0000';
+
+    static boolean matchesPlatform(@Nonnull Platform platform, @Nonnull Platform mine) {
+        if( platform.equals(Platform.UNKNOWN) ) {
+            return true;
+        }
+        if( platform.isWindows() && !mine.isWindows() ) {
+            return false;
+        }
+        if( platform.isUnix() && !mine.isUnix() ) {
+            return false;
+        }
+        if( platform.isBsd() && !mine.isBsd() ) {
+            return false;
+        }
+        if( platform.isLinux() && !mine.isLinux() ) {
+            return false;
+        }
+        if( platform.equals(Platform.UNIX) ) {
+            return mine.isUnix();
+        }
+        return platform.equals(mine);
+    }
+
+    static private void post(@Nonnull Map<String,Set<String>> grams, @Nonnull String text, @Nonnull String imageId) {
+        for( int i=0; i<=text.length()-GRAM_LENGTH; i++ ) {
+            String gram = text.substring(i, i + GRAM_LENGTH);
+            Set<String> ids = grams.get(gram);
+
+            if( ids == null ) {
+                ids = new LinkedHashSet<String>();
+                grams.put(gram, ids);
+            }
+            ids.add(imageId);
+        }
+    }
+
+    static private class Index {
+        private final Map<Architecture,Set<String>> architectures = new HashMap<Architecture,Set<String>>();
+        private final Map<String,Set<String>>       grams         = new HashMap<String,Set<String>>();
+        private final Map<String,MachineImage>      images        = new LinkedHashMap<String,MachineImage>();
+        private final long                          loadedAt;
+        private final Map<Platform,Set<String>>     platforms     = new HashMap<Platform,Set<String>>();
+        private final Map<String,String>            text          = new HashMap<String,String>();
+
+        private Index(@Nonnull List<MachineImage> listing, long loadedAt) {
+            this.loadedAt = loadedAt;
+            for( MachineImage image : listing ) {
+                String id = image.getProviderMachineImageId();
+
+                if( images.put(id, image) != null ) {
+                    continue;
+                }
+                Architecture architecture = image.getArchitecture();
+                Platform platform = image.getPlatform();
+
+                if( architecture != null ) {
+                    facet(architectures, architecture, id);
+                }
+                facet(platforms, (platform == null ? Platform.UNKNOWN : platform), id);
+
+                String name = lower(image.getName());
+                String description = lower(image.getDescription());
+                String lowerId = id.toLowerCase();
+
+                // grams are posted per field so a keyword never matches across a field boundary
+                post(grams, name, id);
+                post(grams, description, id);
+                post(grams, lowerId, id);
+                text.put(id, description + FIELD_SEPARATOR + name + FIELD_SEPARATOR + lowerId);
+            }
+        }
+
+        private <K> void facet(@Nonnull Map<K,Set<String>> facets, @Nonnull K key, @Nonnull String imageId) {
+            Set<String> ids = facets.get(key);
+
+            if( ids == null ) {
+                ids = new LinkedHashSet<String>();
+                facets.put(key, ids);
+            }
+            ids.add(imageId);
+        }
+
+        private @Nonnull String lower(@Nullable String value) {
+            return (value == null ? "" : value.toLowerCase());
+        }
+
+        private @Nonnull List<MachineImage> search(@Nullable String keyword, @Nullable Platform platform, @Nullable Architecture architecture) {
+            ArrayList<Set<String>> constraints = new ArrayList<Set<String>>();
+
+            if( architecture != null ) {
+                Set<String> ids = architectures.get(architecture);
+
+                if( ids == null ) {
+                    return Collections.emptyList();
+                }
+                constraints.add(ids);
+            }
+            if( platform != null && !platform.equals(Platform.UNKNOWN) ) {
+                Set<String> ids = null;
+
+                for( Map.Entry<Platform,Set<String>> entry : platforms.entrySet() ) {
+                    if( matchesPlatform(platform, entry.getKey()) ) {
+                        if( ids == null ) {
+                            ids = entry.getValue();
+                        }
+                        else {
+                            LinkedHashSet<String> union = new LinkedHashSet<String>(ids);
+
+                            union.addAll(entry.getValue());
+                            ids = union;
+                        }
+                    }
+                }
+                if( ids == null ) {
+                    return Collections.emptyList();
+                }
+                constraints.add(ids);
+            }
+            if( keyword != null ) {
+                keyword = keyword.toLowerCase();
+                if( keyword.length() >= GRAM_LENGTH ) {
+                    for( int i=0; i<=keyword.length()-GRAM_LENGTH; i++ ) {
+                        Set<String> ids = grams.get(keyword.substring(i, i + GRAM_LENGTH));
+
+                        if( ids == null ) {
+                            return Collections.emptyList();
+                        }
+                        constraints.add(ids);
+                    }
+                }
+            }
+            Set<String> smallest = null;
+
+            for( Set<String> ids : constraints ) {
+                if( smallest == null || ids.size() < smallest.size() ) {
+                    smallest = ids;
+                }
+            }
+            ArrayList<MachineImage> matches = new ArrayList<MachineImage>();
+
+            // postings are built in listing order, so walking the smallest one keeps results in listing order
+            for( String id : (smallest == null ? images.keySet() : smallest) ) {
+                boolean matched = true;
+
+                for( Set<String> ids : constraints ) {
+                    if( ids != smallest && !ids.contains(id) ) {
+                        matched = false;
+                        break;
+                    }
+                }
+                // trigrams only narrow the candidates; the keyword must still appear intact in one field
+                if( matched && keyword != null && !text.get(id).contains(keyword) ) {
+                    matched = false;
+                }
+                if( matched ) {
+                    // the indexed images are shared by every search, so callers get their own copies
+                    matches.add(InventoryCache.copyOf(MachineImage.class, images.get(id)));
+                }
+            }
+            return matches;
+        }
+    }
+
+    private class Container {
+        private final String   path;
+        private long           generation = 0L;
+        private volatile Index index      = null;
+        private boolean        refreshing = false;
+
+        private Container(@Nonnull String path) { this.path = path; }
+
+        private @Nonnull Index current(@Nonnull InventoryCache.Loader<List<MachineImage>> loader, @Nonnull Executor executor) throws CloudException, InternalException {
+            Index snapshot = index;
+
+            if( snapshot == null || (System.currentTimeMillis() - snapshot.loadedAt) > TIME_TO_LIVE ) {
+                return load(loader);
+            }
+            if( (System.currentTimeMillis() - snapshot.loadedAt) > REFRESH_AHEAD ) {
+                refreshAhead(loader, executor);
+            }
+            return snapshot;
+        }
+
+        private synchronized void invalidate() {
+            generation++;
+            index = null;
+        }
+
+        private boolean isCurrent() {
+            Index snapshot = index;
+
+            return (snapshot != null && (System.currentTimeMillis() - snapshot.loadedAt) <= TIME_TO_LIVE);
+        }
+
+        private synchronized @Nonnull Index load(@Nonnull InventoryCache.Loader<List<MachineImage>> loader) throws CloudException, InternalException {
+            // another caller may have finished loading while this one waited for the lock
+            if( isCurrent() ) {
+                return index;
+            }
+            long started = System.currentTimeMillis();
+            List<MachineImage> listing = loader.load();
+
+            index = new Index(listing == null ? Collections.<MachineImage>emptyList() : listing, started);
+            return index;
+        }
+
+        private void refreshAhead(@Nonnull final InventoryCache.Loader<List<MachineImage>> loader, @Nonnull Executor executor) {
+            final long startedGeneration;
+
+            synchronized( this ) {
+                if( refreshing ) {
+                    return;
+                }
+                refreshing = true;
+                startedGeneration = generation;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            long started = System.currentTimeMillis();
+                            List<MachineImage> listing = loader.load();
+
+                            if( listing != null ) {
+                                Index loaded = new Index(listing, started);
+
+                                synchronized( Container.this ) {
+                                    // an image created or removed during the reload may not be reflected in it
+                                    if( generation == startedGeneration ) {
+                                        index = loaded;
+                                    }
+                                }
+                            }
+                        }
+                        catch( Throwable t ) {
+                            logger.warn("Unable to refresh images in " + (path.length() < 1 ? "the account" : path) + ": " + t.getMessage());
+                        }
+                        finally {
+                            synchronized( Container.this ) {
+                                refreshing = false;
+                            }
+                        }
+                    }
+                });
+            }
+            catch( RejectedExecutionException e ) {
+                synchronized( this ) {
+                    refreshing = false;
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String,Container> containers = new ConcurrentHashMap<String,Container>();
+
+    public ImageCatalog() { }
+
+    private @Nonnull Container getContainer(@Nullable String path) {
+        String key = (path == null ? ACCOUNT_CONTAINER : path);
+        Container container = containers.get(key);
+
+        if( container == null ) {
+            Container existing;
+
+            container = new Container(key);
+            existing = containers.putIfAbsent(key, container);
+            if( existing != null ) {
+                container = existing;
+            }
+        }
+        return container;
+    }
+
+    /**
+     * Drops every indexed container so the next search of each reloads it. Called whenever an image is created or
+     * removed through this provider session.
+     */
+    public void invalidate() {
+        for( Container container : containers.values() ) {
+            container.invalidate();
+        }
+    }
+
+    /**
+     * Indicates whether a search of the specified container can be answered from memory without waiting on the cloud.
+     * @param path the container path, or <code>null</code> for the account container
+     * @return true if the container has been indexed and has not expired
+     */
+    public boolean isCurrent(@Nullable String path) {
+        Container container = containers.get(path == null ? ACCOUNT_CONTAINER : path);
+
+        return (container != null && container.isCurrent());
+    }
+
+    /**
+     * Searches a container for images matching all of the specified criteria. A keyword matches if it appears,
+     * ignoring case, in the image name, description or ID.
+     * @param path the container path, or <code>null</code> for the account container
+     * @param keyword the keyword to match, if any
+     * @param platform the platform to match, if any
+     * @param architecture the architecture to match, if any
+     * @param loader lists the container if it must be loaded
+     * @param executor runs background refreshes
+     * @return copies of the matching images in listing order, which callers are free to change
+     * @throws CloudException an error occurred loading the container
+     * @throws InternalException an error occurred processing the container listing
+     */
+    public @Nonnull List<MachineImage> search(@Nullable String path, @Nullable String keyword, @Nullable Platform platform, @Nullable Architecture architecture, @Nonnull InventoryCache.Loader<List<MachineImage>> loader, @Nonnull Executor executor) throws CloudException, InternalException {
+        return getContainer(path).current(loader, executor).search(keyword, platform, architecture);
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dasein.util.CalendarWrapper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Holds recently read imagelists for a provider session, flattened so that both directions of the imagelist
+ * mapping are single lookups: from an instance's imagelist entry to its machine image, and from a machine image to
+ * the imagelist entry a launch plan needs. Lists expire after {@link #TIME_TO_LIVE} and at most
+ * {@link #MAXIMUM_LISTS} are held, the least recently used being dropped first.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class ImageListCache {
+    static public final int  MAXIMUM_LISTS = 500;
+    static public final long TIME_TO_LIVE  = CalendarWrapper.MINUTE * 5L;
+
+    /**
+     * A single imagelist as read from the cloud.
+     */
+    static public class ImageList {
+        /**
+         * Flattens an imagelist. Entry numbers are positions within an entry's machine image array; the image at a
+         * position is taken from the first entry long enough to have one, and the position of an image is the first
+         * at which it appears.
+         * @param ob the imagelist JSON
+         * @param loadedAt when the imagelist was requested
+         * @return the flattened imagelist
+         * @throws JSONException the imagelist is malformed
+         */
+        static @Nonnull ImageList fromJSON(@Nonnull JSONObject ob, long loadedAt) throws JSONException {
+            JSONArray entries = ob.getJSONArray("entries");
+            HashMap<String,Integer> positions = new HashMap<String,Integer>();
+            String[] images = new String[0];
+
+            for( int i=0; i<entries.length(); i++ ) {
+                JSONArray ids = entries.getJSONObject(i).getJSONArray("machineimages");
+
+                if( ids.length() > images.length ) {
+                    String[] grown = new String[ids.length()];
+
+                    System.arraycopy(images, 0, grown, 0, images.length);
+                    for( int j=images.length; j<grown.length; j++ ) {
+                        grown[j] = ids.getString(j);
+                    }
+                    images = grown;
+                }
+                for( int j=0; j<ids.length(); j++ ) {
+                    String id = ids.getString(j);
+
+                    if( !positions.containsKey(id) ) {
+                        positions.put(id, j+1);
+                    }
+                }
+            }
+            return new ImageList(ob.getString("name"), images, positions, loadedAt);
+        }
+
+        private final String[]            images;
+        private final long                loadedAt;
+        private final String              name;
+        private final Map<String,Integer> positions;
+
+        private ImageList(@Nonnull String name, @Nonnull String[] images, @Nonnull Map<String,Integer> positions, long loadedAt) {
+            this.name = name;
+            this.images = images;
+            this.positions = positions;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * @param machineImageId the machine image to locate
+         * @return the entry number that launches the image, or 0 if the image is not in this list
+         */
+        public @Nonnegative int getEntry(@Nonnull String machineImageId) {
+            Integer entry = positions.get(machineImageId);
+
+            return (entry == null ? 0 : entry);
+        }
+
+        /**
+         * @param entry a one-based entry number
+         * @return the machine image behind the entry, or <code>null</code> if the list has no such entry
+         */
+        public @Nullable String getMachineImageId(@Nonnegative int entry) {
+            if( entry < 1 || entry > images.length ) {
+                return null;
+            }
+            return images[entry-1];
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        private boolean isExpired() {
+            return ((System.currentTimeMillis() - loadedAt) > TIME_TO_LIVE);
+        }
+    }
+
+    private final LinkedHashMap<String,ImageList> lists  = new LinkedHashMap<String,ImageList>(16, 0.75f, true);
+    private final HashMap<String,String>          owners = new HashMap<String,String>();
+
+    public ImageListCache() { }
+
+    /**
+     * Provides a cached imagelist.
+     * @param name the full imagelist name
+     * @return the imagelist, or <code>null</code> if it is not cached or has expired
+     */
+    public synchronized @Nullable ImageList get(@Nonnull String name) {
+        ImageList list = lists.get(name);
+
+        if( list != null && list.isExpired() ) {
+            drop(name);
+            return null;
+        }
+        return list;
+    }
+
+    /**
+     * Finds the cached imagelist through which a machine image is launched.
+     * @param machineImageId the machine image
+     * @return the imagelist holding the image, or <code>null</code> if no cached imagelist is known to hold it
+     */
+    public synchronized @Nullable ImageList locate(@Nonnull String machineImageId) {
+        String name = owners.get(machineImageId);
+
+        return (name == null ? null : get(name));
+    }
+
+    /**
+     * Drops a single imagelist, e.g. after its entries change.
+     * @param name the full imagelist name
+     */
+    public synchronized void invalidate(@Nonnull String name) {
+        drop(name);
+    }
+
+    /**
+     * Drops every cached imagelist.
+     */
+    public synchronized void invalidateAll() {
+        lists.clear();
+        owners.clear();
+    }
+
+    /**
+     * Caches an imagelist, replacing any earlier copy.
+     * @param list the imagelist
+     */
+    public synchronized void put(@Nonnull ImageList list) {
+        drop(list.getName());
+        lists.put(list.getName(), list);
+        for( String id : list.positions.keySet() ) {
+            // an image in several lists launches from whichever was read first
+            if( !owners.containsKey(id) ) {
+                owners.put(id, list.getName());
+            }
+        }
+        while( lists.size() > MAXIMUM_LISTS ) {
+            Iterator<String> eldest = lists.keySet().iterator();
+
+            drop(eldest.next());
+        }
+    }
+
+    /**
+     * Caches every imagelist read from a container.
+     * @param found the imagelists
+     */
+    public synchronized void putAll(@Nonnull Collection<ImageList> found) {
+        for( ImageList list : found ) {
+            put(list);
+        }
+    }
+
+    private void drop(@Nonnull String name) {
+        ImageList list = lists.remove(name);
+
+        if( list != null ) {
+            for( String id : list.positions.keySet() ) {
+                if( name.equals(owners.get(id)) ) {
+                    owners.remove(id);
+                }
+            }
+        }
+    }
+}
@@ -20,10 +20,20 @@ package org.dasein.cloud.nimbula.compute;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
@@ -45,9 +55,18 @@ import org.dasein.cloud.compute.VirtualMachineSupport;
 import org.dasein.cloud.compute.VmState;
 import org.dasein.cloud.compute.VmStatistics;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.network.Firewall;
 import org.dasein.cloud.network.RawAddress;
+import org.dasein.cloud.nimbula.BulkProgress;
+import org.dasein.cloud.nimbula.ContainerFanOut;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.LazyListing;
+import org.dasein.cloud.nimbula.LazyResource;
 import org.dasein.cloud.nimbula.NimbulaDirector;
 import org.dasein.cloud.nimbula.NimbulaMethod;
+import org.dasein.cloud.nimbula.SettableFuture;
+import org.dasein.cloud.nimbula.ThrottledExecutor;
+import org.dasein.cloud.nimbula.network.SecurityList;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
@@ -56,6 +75,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -65,6 +85,12 @@ public class Instance implements VirtualMachineSupport {
     static public final String INSTANCE   = "instance";
     static public final String LAUNCHPLAN = "launchplan";
     static public final String SHAPE      = "shape";
+
+    static private final long FIREWALL_STALENESS    = CalendarWrapper.MINUTE;
+    // an instance's security lists are fixed at launch
+    static private final long MEMBERSHIP_STALENESS  = CalendarWrapper.MINUTE * 10L;
+    static private final long PREPARE_TIMEOUT       = CalendarWrapper.MINUTE * 5L;
+    static private final long SHAPE_STALENESS       = CalendarWrapper.MINUTE * 15L;
     
     private NimbulaDirector cloud;
     
@@ -112,6 +138,25 @@ public class Instance implements VirtualMachineSupport {
 
     @Override 
     public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
+        return getProduct(productId, 0L);
+    }
+
+    /**
+     * Fetches a shape, accepting a copy from the provider's inventory cache if it is no older than the specified
+     * staleness.
+     * @param productId the shape to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the shape, or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
+        InventoryCache cache = cloud.getInventoryCache();
+        VirtualMachineProduct product = cache.get(VirtualMachineProduct.class, productId, maxStaleness);
+
+        if( product != null ) {
+            return product;
+        }
         NimbulaMethod method = new NimbulaMethod(cloud, SHAPE);
         int code = method.get("/" + productId);
             
@@ -119,7 +164,9 @@ public class Instance implements VirtualMachineSupport {
             return null;
         }
         try {
-            return toProduct(method.getResponseBody());
+            product = toProduct(method.getResponseBody());
+            cache.put(VirtualMachineProduct.class, productId, product);
+            return product;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -202,8 +249,34 @@ public class Instance implements VirtualMachineSupport {
 
     @Override
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException, CloudException {
+        return getVirtualMachine(vmId, 0L);
+    }
+
+    /**
+     * Fetches a virtual machine, accepting a copy from the provider's inventory cache if it is no older than the
+     * specified staleness.
+     * @param vmId the virtual machine to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the virtual machine, or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
+        InventoryCache cache = cloud.getInventoryCache();
+        VirtualMachine vm = cache.get(VirtualMachine.class, vmId, maxStaleness);
+
+        if( vm != null ) {
+            return vm;
+        }
         try {
-            return toVirtualMachine(getInstance(vmId));
+            vm = toVirtualMachine(getInstance(vmId));
+            if( vm == null ) {
+                cache.remove(VirtualMachine.class, vmId);
+            }
+            else {
+                cache.put(VirtualMachine.class, vmId, vm);
+            }
+            return vm;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -221,9 +294,70 @@ public class Instance implements VirtualMachineSupport {
         if( code == 404 || code == 401 ) {
             return null;
         }
+        // callers that map the instance cache its membership through toVirtualMachine; the others do it themselves
         return method.getResponseBody();
     }
 
+    /**
+     * Security lists of an instance, cached alongside the instance since {@link VirtualMachine} does not carry them.
+     */
+    static private class SecListMembership {
+        public final List<String> seclists;
+
+        public SecListMembership(@Nonnull List<String> seclists) { this.seclists = seclists; }
+    }
+
+    private @Nonnull List<String> cacheMembership(@Nonnull JSONObject ob) throws JSONException {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        if( ob.has("seclists") ) {
+            JSONArray arr = ob.getJSONArray("seclists");
+
+            for( int i=0; i<arr.length(); i++ ) {
+                ids.add(arr.getString(i));
+            }
+        }
+        List<String> seclists = Collections.unmodifiableList(ids);
+
+        if( ob.has("name") ) {
+            cloud.getInventoryCache().put(SecListMembership.class, ob.getString("name"), new SecListMembership(seclists));
+        }
+        return seclists;
+    }
+
+    /**
+     * Checks whether a virtual machine exists without mapping it. A cached copy no older than the specified
+     * staleness counts as proof of existence; otherwise the raw instance is fetched with a single GET.
+     * @param vmId the virtual machine to check
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return true if the virtual machine exists
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public boolean exists(@Nonnull String vmId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
+        InventoryCache cache = cloud.getInventoryCache();
+
+        if( cache.get(VirtualMachine.class, vmId, maxStaleness) != null || cache.get(SecListMembership.class, vmId, maxStaleness) != null ) {
+            return true;
+        }
+        try {
+            JSONObject ob = getInstance(vmId);
+
+            if( ob == null || !ob.has("name") ) {
+                return false;
+            }
+            cacheMembership(ob);
+            return true;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+
     @Override
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
@@ -279,46 +413,43 @@ public class Instance implements VirtualMachineSupport {
         public String imageList;
     }
     
-    private LaunchInfo getLaunchInfo(String imageId) throws CloudException, InternalException {
-        String[] idInfo = cloud.parseId(imageId);
-        
-        NimbulaMethod method = new NimbulaMethod(cloud, Image.IMAGELIST);
-        
-        method.get("/" + idInfo[0] + "/" + idInfo[1] + "/");
-        try {
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-
-            for( int i=0; i<array.length(); i++ ) {
-                JSONObject ob = array.getJSONObject(i);
-                JSONArray entries = ob.getJSONArray("entries");
-                String imageList = ob.getString("name");
-
-                for( int j=0; j<entries.length(); j++ ) {
-                    JSONObject entry = entries.getJSONObject(j);
-                    JSONArray images = entry.getJSONArray("machineimages");
-                    
-                    for( int k=0; k<images.length(); k++ ) {
-                        String id = images.getString(k);
-                    
-                        if( id.equals(imageId) ) {
-                            LaunchInfo launchInfo = new LaunchInfo();
-                            
-                            launchInfo.entry = k+1;
-                            launchInfo.imageList = imageList;
-                            return launchInfo;
-                        }
-                    }
+    private @Nullable LaunchInfo getLaunchInfo(@Nonnull String imageId) throws CloudException, InternalException {
+        ImageListCache cache = cloud.getImageListCache();
+        ImageListCache.ImageList list = cache.locate(imageId);
+
+        if( list == null ) {
+            String[] idInfo = cloud.parseId(imageId);
+            NimbulaMethod method = new NimbulaMethod(cloud, Image.IMAGELIST);
+            long requestedAt = System.currentTimeMillis();
+
+            method.get("/" + idInfo[0] + "/" + idInfo[1] + "/");
+            try {
+                ArrayList<ImageListCache.ImageList> found = new ArrayList<ImageListCache.ImageList>();
+                JSONArray array = method.getResponseBody().getJSONArray("result");
+
+                for( int i=0; i<array.length(); i++ ) {
+                    found.add(ImageListCache.ImageList.fromJSON(array.getJSONObject(i), requestedAt));
                 }
+                // the whole container came back, so remember the lists for sibling images as well
+                cache.putAll(found);
+                list = cache.locate(imageId);
             }
-            return null;
-        }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
+            catch( JSONException e ) {
+                if( logger.isDebugEnabled() ) {
+                    logger.error("Error parsing JSON: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                throw new InternalException(e);
+            }
+            if( list == null ) {
+                return null;
             }
-            throw new InternalException(e);
         }
+        LaunchInfo launchInfo = new LaunchInfo();
+
+        launchInfo.entry = list.getEntry(imageId);
+        launchInfo.imageList = list.getName();
+        return launchInfo;
     }
     
     @Override
@@ -352,8 +483,145 @@ public class Instance implements VirtualMachineSupport {
 
     @Override
     public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        LaunchTimings timings = new LaunchTimings();
+
+        try {
+            return launch(options, timings);
+        }
+        finally {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Launch of " + options.getFriendlyName() + " timings: " + timings);
+            }
+        }
+    }
+
+    /**
+     * Launches a virtual machine, resolving the imagelist entry and validating the shape and each security list
+     * concurrently before issuing the launch plan. Lookups are served from the inventory cache when it is warm.
+     * Any stage no worker has picked up by the time the caller needs it runs on the calling thread, so a launch
+     * never waits on a saturated worker pool.
+     * @param options the launch options
+     * @param timings receives the per-stage latency breakdown of this launch, even if the launch fails
+     * @return the newly launched virtual machine
+     * @throws CloudException the image, shape, or a security list does not exist or the cloud rejected the launch
+     * @throws InternalException an error occurred processing the request locally
+     */
+    public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions options, @Nonnull final LaunchTimings timings) throws CloudException, InternalException {
+        long start = System.currentTimeMillis();
+
+        try {
+            final String imageId = options.getMachineImageId();
+            final String shape = options.getStandardProductId();
+            final String[] firewallIds = options.getFirewallIds();
+            ExecutorService executor = cloud.getExecutor();
+            final long prepareStart = System.currentTimeMillis();
+
+            FutureTask<LaunchInfo> imageTask = new FutureTask<LaunchInfo>(new Callable<LaunchInfo>() {
+                public LaunchInfo call() throws CloudException, InternalException {
+                    long t = System.currentTimeMillis();
+
+                    try {
+                        return getLaunchInfo(imageId);
+                    }
+                    finally {
+                        timings.record(LaunchTimings.Stage.RESOLVE_IMAGE, t);
+                    }
+                }
+            });
+            FutureTask<VirtualMachineProduct> shapeTask = new FutureTask<VirtualMachineProduct>(new Callable<VirtualMachineProduct>() {
+                public VirtualMachineProduct call() throws CloudException, InternalException {
+                    long t = System.currentTimeMillis();
+
+                    try {
+                        return getProduct(shape, SHAPE_STALENESS);
+                    }
+                    finally {
+                        timings.record(LaunchTimings.Stage.VALIDATE_SHAPE, t);
+                    }
+                }
+            });
+            ArrayList<FutureTask<String>> firewallTasks = new ArrayList<FutureTask<String>>();
+
+            executor.execute(imageTask);
+            executor.execute(shapeTask);
+            for( final String id : firewallIds ) {
+                FutureTask<String> firewallTask = new FutureTask<String>(new Callable<String>() {
+                    public String call() throws CloudException, InternalException {
+                        try {
+                            Firewall fw = cloud.getNetworkServices().getFirewallSupport().getFirewall(id, FIREWALL_STALENESS);
+
+                            return (fw == null ? id : null);
+                        }
+                        finally {
+                            // the security lists are checked concurrently, so the last one to finish sets the stage time
+                            timings.record(LaunchTimings.Stage.VALIDATE_FIREWALLS, prepareStart);
+                        }
+                    }
+                });
+
+                firewallTasks.add(firewallTask);
+                executor.execute(firewallTask);
+            }
+            LaunchInfo launch;
+
+            try {
+                launch = awaitLaunchStage(imageTask);
+                if( launch == null ) {
+                    throw new CloudException("No imagelist entry exists for machine image " + imageId);
+                }
+                if( awaitLaunchStage(shapeTask) == null ) {
+                    throw new CloudException("No such shape: " + shape);
+                }
+                for( FutureTask<String> firewallTask : firewallTasks ) {
+                    String missing = awaitLaunchStage(firewallTask);
+
+                    if( missing != null ) {
+                        throw new CloudException("No such security list: " + missing);
+                    }
+                }
+            }
+            finally {
+                imageTask.cancel(true);
+                shapeTask.cancel(true);
+                for( FutureTask<String> firewallTask : firewallTasks ) {
+                    firewallTask.cancel(true);
+                }
+            }
+            timings.record(LaunchTimings.Stage.PREPARE, prepareStart);
+            return launch(options, launch, timings);
+        }
+        finally {
+            timings.record(LaunchTimings.Stage.TOTAL, start);
+        }
+    }
+
+    private @Nullable <T> T awaitLaunchStage(@Nonnull FutureTask<T> task) throws CloudException, InternalException {
+        // runs the stage here if it is still queued behind other work; does nothing if a worker already has it
+        task.run();
+        try {
+            return task.get(PREPARE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+        catch( TimeoutException e ) {
+            throw new CloudException("Timed out resolving launch dependencies");
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    private @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions options, @Nonnull LaunchInfo launch, @Nonnull LaunchTimings timings) throws CloudException, InternalException {
         HashMap<String,Object> state = new HashMap<String,Object>();
-        LaunchInfo launch = getLaunchInfo(options.getMachineImageId());
         state.put("relationships", new ArrayList<String>());
         
         ArrayList<Map<String,Object>> targets = new ArrayList<Map<String,Object>>();
@@ -374,20 +642,25 @@ public class Instance implements VirtualMachineSupport {
         state.put("instances", targets);
         
         NimbulaMethod method = new NimbulaMethod(cloud, LAUNCHPLAN);
+        long t = System.currentTimeMillis();
         
         method.post(state);
-
+        timings.record(LaunchTimings.Stage.LAUNCH, t);
+        t = System.currentTimeMillis();
         try {
             JSONArray instances = method.getResponseBody().getJSONArray("instances");
             
             if( instances.length() < 1 ) {
                 throw new CloudException("Cloud failed to launch any instances without comment.");
             }
-            VirtualMachine vm = toVirtualMachine(instances.getJSONObject(0));
+            // we already know which image we asked for, so skip the imagelist lookup
+            VirtualMachine vm = toVirtualMachine(instances.getJSONObject(0), options.getMachineImageId());
 
             if( vm == null ) {
                 throw new CloudException("No virtual machine was created, but no error was specified");
             }
+            cloud.getInventoryCache().put(VirtualMachine.class, vm.getProviderVirtualMachineId(), vm);
+            timings.record(LaunchTimings.Stage.BUILD_RESULT, t);
             return vm;
         }
         catch( JSONException e ) {
@@ -401,22 +674,19 @@ public class Instance implements VirtualMachineSupport {
 
     @Override
     public @Nonnull Iterable<String> listFirewalls(@Nonnull String vmId) throws InternalException, CloudException {
+        InventoryCache cache = cloud.getInventoryCache();
+        SecListMembership membership = cache.get(SecListMembership.class, vmId, MEMBERSHIP_STALENESS);
+
+        if( membership != null ) {
+            return membership.seclists;
+        }
         try {
             JSONObject ob = getInstance(vmId);
             
             if( ob == null || !ob.has("name") ) {
                 throw new CloudException("No such instance: " + vmId);
             }
-            if( !ob.has("seclists") ) {
-                return Collections.emptyList();
-            }
-            ArrayList<String> ids = new ArrayList<String>();
-            JSONArray arr = ob.getJSONArray("seclists");
-            
-            for( int i=0; i<arr.length(); i++ ) {
-                ids.add(arr.getString(i));
-            }
-            return ids;
+            return cacheMembership(ob);
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -436,13 +706,16 @@ public class Instance implements VirtualMachineSupport {
         
         method.list();
         try {
-            ArrayList<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
+            LinkedHashMap<String,VirtualMachineProduct> products = new LinkedHashMap<String,VirtualMachineProduct>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
             
             for( int i=0; i<array.length(); i++ ) {
-                products.add(toProduct(array.getJSONObject(i)));
+                VirtualMachineProduct product = toProduct(array.getJSONObject(i));
+
+                products.put(product.getProviderProductId(), product);
             }
-            return products;
+            cloud.getInventoryCache().putAll(VirtualMachineProduct.class, products);
+            return new ArrayList<VirtualMachineProduct>(products.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -460,32 +733,48 @@ public class Instance implements VirtualMachineSupport {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        NimbulaMethod method = new NimbulaMethod(cloud, INSTANCE);
+
+        method.list();
+        try {
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+            for( Map.Entry<String,String> entry : method.getResultProjection("name", "state").entrySet() ) {
+                String state = entry.getValue();
 
-        for( VirtualMachine vm : listVirtualMachines() ) {
-            status.add(new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState()));
+                status.add(new ResourceStatus(entry.getKey(), state == null ? VmState.PENDING : toState(state)));
+            }
+            return status;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
         }
-        return status;
     }
 
     @Override
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
         NimbulaMethod method = new NimbulaMethod(cloud, INSTANCE);
-        
+        long listedAt = System.currentTimeMillis();
+
         method.list();
 
         try {
-            ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
+            LinkedHashMap<String,VirtualMachine> vms = new LinkedHashMap<String,VirtualMachine>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
             
             for( int i=0; i<array.length(); i++ ) {
                 VirtualMachine vm = toVirtualMachine(array.getJSONObject(i));
                 
                 if( vm != null ) {
-                    vms.add(vm);
+                    vms.put(vm.getProviderVirtualMachineId(), vm);
                 }
             }
-            return vms;
+            cloud.getInventoryCache().replaceAll(VirtualMachine.class, vms, listedAt);
+            return new ArrayList<VirtualMachine>(vms.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -496,6 +785,104 @@ public class Instance implements VirtualMachineSupport {
         } 
     }
 
+    /**
+     * Lists the names of every virtual machine in the account using the directory form of the API. Each handle
+     * fetches the full virtual machine, together with the rest of its batch, only when accessed.
+     * @param batchSize the number of handles whose details are fetched together
+     * @return lazy handles on the virtual machines in the account
+     * @throws InternalException an error occurred processing a directory listing
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull List<LazyResource<VirtualMachine>> listVirtualMachineHandles(@Nonnegative int batchSize) throws InternalException, CloudException {
+        return new LazyListing<VirtualMachine>(cloud, INSTANCE, batchSize) {
+            @Override
+            protected @Nullable VirtualMachine fetch(@Nonnull String providerId) throws CloudException, InternalException {
+                return getVirtualMachine(providerId);
+            }
+        }.list();
+    }
+
+    /**
+     * Lists every virtual machine in the account by discovering the user containers and fetching them concurrently.
+     * Results stream back as each user's container is read, so the first virtual machines are available after
+     * roughly a single user's latency.
+     * @param parallelism the maximum number of user containers fetched at once
+     * @return the virtual machines in the account
+     * @throws InternalException an error occurred processing the discovery response
+     * @throws CloudException discovery failed
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachinesByUser(@Nonnegative int parallelism) throws InternalException, CloudException {
+        return new ContainerFanOut<VirtualMachine>(cloud, INSTANCE, VirtualMachine.class, parallelism) {
+            @Override
+            protected @Nullable VirtualMachine toResource(@Nonnull JSONObject ob) throws JSONException, CloudException, InternalException {
+                return toVirtualMachine(ob);
+            }
+
+            @Override
+            protected @Nonnull String getId(@Nonnull VirtualMachine vm) {
+                return vm.getProviderVirtualMachineId();
+            }
+        }.list();
+    }
+
+    /**
+     * Lists the virtual machines matching the specified filter. A user restriction narrows the request to that
+     * user's container; the other criteria are applied to each raw instance as the buffered response is parsed,
+     * so rejected instances are dropped without being mapped (mapping resolves the machine image and is not free).
+     * @param filter the criteria to match
+     * @return the matching virtual machines
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nonnull final InstanceFilter filter) throws InternalException, CloudException {
+        ProviderContext ctx = cloud.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        NimbulaMethod method = new NimbulaMethod(cloud, INSTANCE);
+        String userId = filter.getUserId();
+
+        if( userId == null ) {
+            method.list();
+        }
+        else {
+            int code = method.get("/" + ctx.getAccountNumber() + "/" + userId + "/");
+
+            if( code == 404 || code == 401 ) {
+                return Collections.emptyList();
+            }
+        }
+        try {
+            LinkedHashMap<String,VirtualMachine> vms = new LinkedHashMap<String,VirtualMachine>();
+            List<JSONObject> matches = method.getResults(new NimbulaMethod.ResultFilter() {
+                public boolean accept(@Nonnull JSONObject ob) throws JSONException {
+                    String state = (ob.has("state") && !ob.isNull("state")) ? ob.getString("state") : null;
+
+                    return filter.matches(state == null ? null : toState(state), ob.optString("shape", null), ob.optString("label", null));
+                }
+            });
+
+            for( JSONObject ob : matches ) {
+                VirtualMachine vm = toVirtualMachine(ob);
+
+                if( vm != null ) {
+                    vms.put(vm.getProviderVirtualMachineId(), vm);
+                }
+            }
+            // a filtered listing says nothing about instances it did not return
+            cloud.getInventoryCache().putAll(VirtualMachine.class, vms);
+            return new ArrayList<VirtualMachine>(vms.values());
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+
     @Override
     public void pause(@Nonnull String vmId) throws InternalException, CloudException {
         throw new OperationNotSupportedException("Pause/unpause not supported");
@@ -564,27 +951,95 @@ public class Instance implements VirtualMachineSupport {
     @Override
     public void terminate(@Nonnull String vmId) throws InternalException, CloudException {
         long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+        StatePoller poller = cloud.getStatePoller();
         NimbulaMethod method = new NimbulaMethod(cloud, INSTANCE);
-        VirtualMachine vm = getVirtualMachine(vmId);
 
-        while( timeout > System.currentTimeMillis() ) {
-            if( vm == null || !VmState.PENDING.equals(vm.getCurrentState()) ) {
-                break;
-            }
-            try { Thread.sleep(5000L); }
-            catch( InterruptedException ignore ) { }
-            vm = getVirtualMachine(vmId);
+        try {
+            poller.waitUntilNotPending(vmId, timeout - System.currentTimeMillis()).await(timeout - System.currentTimeMillis());
+        }
+        catch( CloudException e ) {
+            // a virtual machine stuck in pending is still deleted; only the wait for termination can fail
+            logger.warn("Gave up waiting for " + vmId + " to leave the pending state: " + e.getMessage());
         }
         method.delete(vmId);
-        while( timeout > System.currentTimeMillis() ) {
-            if( vm == null || VmState.TERMINATED.equals(vm.getCurrentState()) ) {
-                return;
-            }
-            try { Thread.sleep(5000L); }
-            catch( InterruptedException ignore ) { }
-            vm = getVirtualMachine(vmId);
+        cloud.getInventoryCache().remove(VirtualMachine.class, vmId);
+        cloud.getInventoryCache().remove(SecListMembership.class, vmId);
+        poller.waitUntilTerminated(vmId, Math.max(0L, timeout - System.currentTimeMillis())).await(Math.max(0L, timeout - System.currentTimeMillis()));
+    }
+
+    /**
+     * Terminates many virtual machines at once without blocking the caller. Each virtual machine is first allowed
+     * to leave the pending state, then deleted with no more than <code>parallelism</code> DELETE calls in flight.
+     * Completion of the whole set is tracked from the shared instance listings of the {@link StatePoller}.
+     * @param vmIds the virtual machines to terminate
+     * @param parallelism the maximum number of concurrent DELETE calls
+     * @return a progress handle holding the outcome for each virtual machine
+     */
+    public @Nonnull BulkProgress<VmState> terminateAll(@Nonnull Collection<String> vmIds, int parallelism) {
+        final long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
+        final LinkedHashSet<String> ids = new LinkedHashSet<String>(vmIds);
+        final BulkProgress<VmState> progress = new BulkProgress<VmState>(ids);
+        final StatePoller poller = cloud.getStatePoller();
+        final ThrottledExecutor deletes = new ThrottledExecutor(cloud.getExecutor(), parallelism);
+
+        for( final String vmId : ids ) {
+            final SettableFuture<VmState> settled = poller.waitUntilNotPending(vmId, timeout - System.currentTimeMillis());
+
+            settled.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    VmState state = null;
+
+                    try {
+                        state = settled.get();
+                    }
+                    catch( Throwable t ) {
+                        // as with terminate(), a virtual machine stuck in pending is deleted anyway
+                        logger.warn("Gave up waiting for " + vmId + " to leave the pending state: " + (settled.getError() == null ? t : settled.getError()).getMessage());
+                    }
+                    if( VmState.TERMINATED.equals(state) ) {
+                        progress.succeeded(vmId, state);
+                        return;
+                    }
+                    deletes.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                NimbulaMethod method = new NimbulaMethod(cloud, INSTANCE);
+
+                                method.delete(vmId);
+                                cloud.getInventoryCache().remove(VirtualMachine.class, vmId);
+                                cloud.getInventoryCache().remove(SecListMembership.class, vmId);
+                            }
+                            catch( Throwable t ) {
+                                logger.error("Failed to terminate " + vmId + ": " + t.getMessage());
+                                progress.failed(vmId, t);
+                                return;
+                            }
+                            final SettableFuture<VmState> terminated = poller.waitUntilTerminated(vmId, Math.max(0L, timeout - System.currentTimeMillis()));
+
+                            terminated.addListener(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Throwable error = terminated.getError();
+
+                                    if( error != null ) {
+                                        progress.failed(vmId, error);
+                                    }
+                                    else if( terminated.isCancelled() ) {
+                                        progress.failed(vmId, new InternalException("Termination tracking was cancelled"));
+                                    }
+                                    else {
+                                        progress.succeeded(vmId, VmState.TERMINATED);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
+            });
         }
-        throw new CloudException("The system timed out waiting for the virtual machine to terminate");
+        return progress;
     }
 
     private @Nonnull VirtualMachineProduct toProduct(@Nonnull JSONObject ob) throws JSONException {
@@ -607,7 +1062,7 @@ public class Instance implements VirtualMachineSupport {
         return product;
     }
     
-    private @Nonnull VmState toState(@Nonnull String value) {
+    static @Nonnull VmState toState(@Nonnull String value) {
         if( value.equalsIgnoreCase("running") ) {
             return VmState.RUNNING;
         }
@@ -631,6 +1086,10 @@ public class Instance implements VirtualMachineSupport {
     }
     
     private @Nullable VirtualMachine toVirtualMachine(@Nullable JSONObject ob) throws JSONException, InternalException, CloudException {
+        return toVirtualMachine(ob, null);
+    }
+
+    private @Nullable VirtualMachine toVirtualMachine(@Nullable JSONObject ob, @Nullable String knownImageId) throws JSONException, InternalException, CloudException {
         if( ob == null ) {
             return null;
         }
@@ -647,6 +1106,8 @@ public class Instance implements VirtualMachineSupport {
         }
         String desc = ob.getString("name");
         VirtualMachine vm = new VirtualMachine();
+
+        cacheMembership(ob);
         String[] idInfo = cloud.parseId(ob.getString("name"));
 
         vm.setProviderRegionId(regionId);
@@ -693,9 +1154,14 @@ public class Instance implements VirtualMachineSupport {
             // ignore
         }
         vm.setProviderAssignedIpAddressId(null);
-        String imagelist = ob.getString("imagelist");
-        String entry = ob.getString("entry");
-        vm.setProviderMachineImageId(cloud.getComputeServices().getImageSupport().getMachineImageId(imagelist, Integer.parseInt(entry)));
+        if( knownImageId != null ) {
+            vm.setProviderMachineImageId(knownImageId);
+        }
+        else {
+            String imagelist = ob.getString("imagelist");
+            String entry = ob.getString("entry");
+            vm.setProviderMachineImageId(cloud.getComputeServices().getImageSupport().getMachineImageId(imagelist, Integer.parseInt(entry)));
+        }
         vm.setProviderOwnerId(idInfo[0]);
         vm.setProviderVirtualMachineId(ob.getString("name"));
         vm.setPublicDnsAddress(null);
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Criteria for {@link Instance#listVirtualMachines(InstanceFilter)}. The owning user narrows the container path of
+ * the listing request itself; the remaining criteria are tested against the raw listing as it is read, before any
+ * matching instance is turned into a {@link org.dasein.cloud.compute.VirtualMachine}. Criteria left unset match
+ * everything.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class InstanceFilter {
+    static public @Nonnull InstanceFilter getInstance() {
+        return new InstanceFilter();
+    }
+
+    private String           label;
+    private String           shape;
+    private EnumSet<VmState> states;
+    private String           userId;
+
+    private InstanceFilter() { }
+
+    public @Nullable String getLabel() {
+        return label;
+    }
+
+    public @Nullable String getShape() {
+        return shape;
+    }
+
+    public @Nonnull Set<VmState> getStates() {
+        if( states == null ) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(states);
+    }
+
+    public @Nullable String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Restricts the listing to instances whose label exactly matches the specified label.
+     * @param label the label to match
+     * @return this filter
+     */
+    public @Nonnull InstanceFilter withLabel(@Nonnull String label) {
+        this.label = label;
+        return this;
+    }
+
+    /**
+     * Restricts the listing to instances launched with the specified shape.
+     * @param shape the shape to match
+     * @return this filter
+     */
+    public @Nonnull InstanceFilter withShape(@Nonnull String shape) {
+        this.shape = shape;
+        return this;
+    }
+
+    /**
+     * Restricts the listing to instances in any of the specified states. May be called more than once.
+     * @param states the acceptable states
+     * @return this filter
+     */
+    public @Nonnull InstanceFilter inState(@Nonnull VmState ... states) {
+        if( this.states == null ) {
+            this.states = EnumSet.noneOf(VmState.class);
+        }
+        Collections.addAll(this.states, states);
+        return this;
+    }
+
+    /**
+     * Restricts the listing to instances owned by the specified user. This is pushed down into the request as the
+     * user's container path, so only that user's instances cross the wire.
+     * @param userId the owning user within the current account
+     * @return this filter
+     */
+    public @Nonnull InstanceFilter ownedBy(@Nonnull String userId) {
+        this.userId = userId;
+        return this;
+    }
+
+    boolean matches(@Nullable VmState state, @Nullable String shape, @Nullable String label) {
+        if( states != null && (state == null || !states.contains(state)) ) {
+            return false;
+        }
+        if( this.shape != null && !this.shape.equals(shape) ) {
+            return false;
+        }
+        //noinspection RedundantIfStatement
+        if( this.label != null && !this.label.equals(label) ) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return ("[user=" + userId + ",states=" + states + ",shape=" + shape + ",label=" + label + "]");
+    }
+}
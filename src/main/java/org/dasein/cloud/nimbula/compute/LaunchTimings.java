@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Per-stage latency breakdown of a single {@link Instance#launch(org.dasein.cloud.compute.VMLaunchOptions, LaunchTimings)}
+ * call. The resolution stages run concurrently, so their durations overlap and {@link Stage#PREPARE} records the
+ * wall-clock time spent waiting on all of them. Stages that were never reached report -1.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class LaunchTimings {
+    static public enum Stage {
+        /** locating the imagelist entry for the requested machine image */
+        RESOLVE_IMAGE,
+        /** validating the requested shape */
+        VALIDATE_SHAPE,
+        /** validating the requested security lists */
+        VALIDATE_FIREWALLS,
+        /** wall-clock time for all concurrent resolution stages to finish */
+        PREPARE,
+        /** the launchplan POST */
+        LAUNCH,
+        /** building the virtual machine from the launch response */
+        BUILD_RESULT,
+        /** the launch call end to end */
+        TOTAL
+    }
+
+    private final EnumMap<Stage,Long> durations = new EnumMap<Stage,Long>(Stage.class);
+
+    public LaunchTimings() { }
+
+    synchronized void record(@Nonnull Stage stage, long startedAt) {
+        durations.put(stage, System.currentTimeMillis() - startedAt);
+    }
+
+    /**
+     * @param stage the stage of interest
+     * @return the time in milliseconds spent in the specified stage, or -1 if the stage did not complete
+     */
+    public synchronized long getDuration(@Nonnull Stage stage) {
+        Long d = durations.get(stage);
+
+        return (d == null ? -1L : d);
+    }
+
+    /**
+     * @return a snapshot of all completed stages and their durations in milliseconds
+     */
+    public synchronized @Nonnull Map<Stage,Long> getDurations() {
+        return new EnumMap<Stage,Long>(durations);
+    }
+
+    @Override
+    public synchronized @Nonnull String toString() {
+        return durations.toString();
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.compute.VolumeState;
+import org.dasein.cloud.nimbula.NimbulaDirector;
+import org.dasein.cloud.nimbula.NimbulaMethod;
+import org.dasein.cloud.nimbula.NimbulaThreadFactory;
+import org.dasein.cloud.nimbula.SettableFuture;
+import org.dasein.util.CalendarWrapper;
+import org.json.JSONException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Tracks asynchronous waits on virtual machine and volume state for a single provider session. Rather than each
+ * caller sleeping and fetching its own resource, every waiter registers here and a single scheduler thread runs
+ * at most one listing per resource type per poll, completing all of the registered futures from that listing.
+ * Poll intervals start short when a waiter registers and back off while nothing being watched changes state.
+ * The scheduler goes idle when there is nothing to wait on.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class StatePoller {
+    static private final Logger logger = NimbulaDirector.getLogger(StatePoller.class);
+
+    static public final long MINIMUM_INTERVAL = 2L * CalendarWrapper.SECOND;
+    static public final long MAXIMUM_INTERVAL = 30L * CalendarWrapper.SECOND;
+
+    static private final long TICK = CalendarWrapper.SECOND;
+
+    static private abstract class Waiter<T> {
+        public final SettableFuture<T> future = new SettableFuture<T>();
+        public final String            id;
+        public final long              timeout;
+
+        public Waiter(@Nonnull String id, @Nonnegative long timeout) {
+            this.id = id;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Examines the latest state of the resource and completes the future if the wait is over.
+         * @param state the raw Nimbula state of the resource, or <code>null</code> if it is no longer listed
+         * @return true if the waiter is done and may be dropped
+         */
+        public abstract boolean check(@Nullable String state);
+    }
+
+    static private class Tracker {
+        public final HashMap<String,String> lastSeen   = new HashMap<String,String>();
+        public final String                 resource;
+        public final String                 stateField;
+        public final ArrayList<Waiter<?>>   waiters    = new ArrayList<Waiter<?>>();
+        public long                         interval   = MINIMUM_INTERVAL;
+        public long                         nextPoll   = 0L;
+
+        public Tracker(@Nonnull String resource, @Nonnull String stateField) {
+            this.resource = resource;
+            this.stateField = stateField;
+        }
+    }
+
+    private final NimbulaDirector             cloud;
+    private final Tracker                     instances = new Tracker(Instance.INSTANCE, "state");
+    private final ScheduledThreadPoolExecutor scheduler;
+    private ScheduledFuture<?>                task      = null;
+    private final Tracker                     volumes   = new Tracker(Storage.STORAGE_VOLUME, "status");
+
+    public StatePoller(@Nonnull NimbulaDirector cloud) {
+        this.cloud = cloud;
+        scheduler = new ScheduledThreadPoolExecutor(1, new NimbulaThreadFactory("nimbula-state-poller"));
+        scheduler.setKeepAliveTime(1L, TimeUnit.MINUTES);
+        scheduler.allowCoreThreadTimeOut(true);
+    }
+
+    private @Nonnull Map<String,String> listStates(@Nonnull Tracker tracker) throws CloudException, InternalException {
+        NimbulaMethod method = new NimbulaMethod(cloud, tracker.resource);
+
+        method.list();
+        try {
+            return method.getResultProjection("name", tracker.stateField);
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+    }
+
+    private void poll(@Nonnull Tracker tracker) {
+        long now = System.currentTimeMillis();
+        ArrayList<Waiter<?>> pending;
+
+        synchronized( this ) {
+            Iterator<Waiter<?>> it = tracker.waiters.iterator();
+
+            while( it.hasNext() ) {
+                Waiter<?> w = it.next();
+
+                if( w.future.isDone() ) {
+                    it.remove();
+                }
+                else if( w.timeout <= now ) {
+                    w.future.fail(new CloudException("The system timed out waiting on the state of " + w.id));
+                    it.remove();
+                }
+            }
+            if( tracker.waiters.isEmpty() ) {
+                tracker.lastSeen.clear();
+                return;
+            }
+            if( tracker.nextPoll > now ) {
+                return;
+            }
+            pending = new ArrayList<Waiter<?>>(tracker.waiters);
+        }
+        Map<String,String> states;
+
+        try {
+            states = listStates(tracker);
+        }
+        catch( Throwable t ) {
+            logger.warn("Failed to list " + tracker.resource + " state: " + t.getMessage());
+            if( logger.isDebugEnabled() ) {
+                t.printStackTrace();
+            }
+            synchronized( this ) {
+                tracker.interval = Math.min(tracker.interval * 2L, MAXIMUM_INTERVAL);
+                tracker.nextPoll = now + tracker.interval;
+            }
+            return;
+        }
+        ArrayList<Waiter<?>> finished = new ArrayList<Waiter<?>>();
+        boolean changed = false;
+
+        for( Waiter<?> w : pending ) {
+            String state = states.get(w.id);
+
+            if( state == null && states.containsKey(w.id) ) {
+                continue;
+            }
+            String seen = (state == null ? "" : state);
+
+            synchronized( this ) {
+                if( !seen.equals(tracker.lastSeen.put(w.id, seen)) ) {
+                    changed = true;
+                }
+            }
+            if( w.check(state) ) {
+                finished.add(w);
+            }
+        }
+        synchronized( this ) {
+            tracker.waiters.removeAll(finished);
+            if( changed ) {
+                tracker.interval = MINIMUM_INTERVAL;
+            }
+            else {
+                tracker.interval = Math.min(tracker.interval * 2L, MAXIMUM_INTERVAL);
+            }
+            tracker.nextPoll = now + tracker.interval;
+        }
+    }
+
+    private synchronized void register(@Nonnull Tracker tracker, @Nonnull Waiter<?> waiter) {
+        tracker.waiters.add(waiter);
+        tracker.interval = MINIMUM_INTERVAL;
+        tracker.nextPoll = System.currentTimeMillis();
+        if( task == null ) {
+            task = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, 0L, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        poll(instances);
+        poll(volumes);
+        synchronized( this ) {
+            if( instances.waiters.isEmpty() && volumes.waiters.isEmpty() && task != null ) {
+                task.cancel(false);
+                task = null;
+            }
+        }
+    }
+
+    /**
+     * Waits for a virtual machine to enter any of the specified states. A virtual machine that is no longer
+     * listed by Nimbula is treated as {@link VmState#TERMINATED}; if that is not one of the target states, the
+     * wait fails.
+     * @param vmId the virtual machine to watch
+     * @param timeoutMillis how long to wait before failing the future
+     * @param states the states that end the wait
+     * @return a future completed with the state in which the virtual machine was found
+     */
+    public @Nonnull SettableFuture<VmState> waitForVirtualMachine(@Nonnull String vmId, @Nonnegative long timeoutMillis, @Nonnull VmState ... states) {
+        final EnumSet<VmState> targets = EnumSet.noneOf(VmState.class);
+
+        Collections.addAll(targets, states);
+        Waiter<VmState> waiter = new Waiter<VmState>(vmId, System.currentTimeMillis() + timeoutMillis) {
+            @Override
+            public boolean check(@Nullable String state) {
+                VmState current = (state == null ? VmState.TERMINATED : Instance.toState(state));
+
+                if( targets.contains(current) ) {
+                    future.complete(current);
+                    return true;
+                }
+                if( VmState.TERMINATED.equals(current) ) {
+                    future.fail(new CloudException("The virtual machine " + id + " terminated"));
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        register(instances, waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Waits for a virtual machine to leave the {@link VmState#PENDING} state.
+     * @param vmId the virtual machine to watch
+     * @param timeoutMillis how long to wait before failing the future
+     * @return a future completed with the first non-pending state observed
+     */
+    public @Nonnull SettableFuture<VmState> waitUntilNotPending(@Nonnull String vmId, @Nonnegative long timeoutMillis) {
+        EnumSet<VmState> states = EnumSet.allOf(VmState.class);
+
+        states.remove(VmState.PENDING);
+        return waitForVirtualMachine(vmId, timeoutMillis, states.toArray(new VmState[states.size()]));
+    }
+
+    public @Nonnull SettableFuture<VmState> waitUntilRunning(@Nonnull String vmId, @Nonnegative long timeoutMillis) {
+        return waitForVirtualMachine(vmId, timeoutMillis, VmState.RUNNING);
+    }
+
+    public @Nonnull SettableFuture<VmState> waitUntilTerminated(@Nonnull String vmId, @Nonnegative long timeoutMillis) {
+        return waitForVirtualMachine(vmId, timeoutMillis, VmState.TERMINATED);
+    }
+
+    /**
+     * Waits for a volume to show up as attached to a virtual machine.
+     * @param volumeId the volume to watch
+     * @param timeoutMillis how long to wait before failing the future
+     * @return a future completed with the volume state once it is attached
+     */
+    public @Nonnull SettableFuture<VolumeState> waitUntilVolumeAttached(@Nonnull String volumeId, @Nonnegative long timeoutMillis) {
+        Waiter<VolumeState> waiter = new Waiter<VolumeState>(volumeId, System.currentTimeMillis() + timeoutMillis) {
+            @Override
+            public boolean check(@Nullable String state) {
+                if( state == null ) {
+                    future.fail(new CloudException("No such volume: " + id));
+                    return true;
+                }
+                if( Storage.isAttached(state) ) {
+                    future.complete(Storage.toState(state));
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        register(volumes, waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Waits for a volume to become available for use.
+     * @param volumeId the volume to watch
+     * @param timeoutMillis how long to wait before failing the future
+     * @return a future completed with {@link VolumeState#AVAILABLE}
+     */
+    public @Nonnull SettableFuture<VolumeState> waitUntilVolumeOnline(@Nonnull String volumeId, @Nonnegative long timeoutMillis) {
+        Waiter<VolumeState> waiter = new Waiter<VolumeState>(volumeId, System.currentTimeMillis() + timeoutMillis) {
+            @Override
+            public boolean check(@Nullable String state) {
+                if( state == null ) {
+                    future.fail(new CloudException("No such volume: " + id));
+                    return true;
+                }
+                VolumeState current = Storage.toState(state);
+
+                if( VolumeState.AVAILABLE.equals(current) ) {
+                    future.complete(current);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        register(volumes, waiter);
+        return waiter.future;
+    }
+}
@@ -25,7 +25,6 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.compute.Platform;
-import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.compute.Volume;
 import org.dasein.cloud.compute.VolumeCreateOptions;
 import org.dasein.cloud.compute.VolumeFormat;
@@ -34,8 +33,16 @@ import org.dasein.cloud.compute.VolumeState;
 import org.dasein.cloud.compute.VolumeSupport;
 import org.dasein.cloud.compute.VolumeType;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.nimbula.BulkProgress;
+import org.dasein.cloud.nimbula.ContainerFanOut;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.LazyListing;
+import org.dasein.cloud.nimbula.LazyResource;
 import org.dasein.cloud.nimbula.NimbulaDirector;
 import org.dasein.cloud.nimbula.NimbulaMethod;
+import org.dasein.cloud.nimbula.SettableFuture;
+import org.dasein.cloud.nimbula.ThrottledExecutor;
+import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Megabyte;
 import org.json.JSONArray;
@@ -46,9 +53,14 @@ import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -61,16 +73,14 @@ import java.util.UUID;
 public class Storage implements VolumeSupport {
     static private final Logger logger = NimbulaDirector.getLogger(Storage.class);
 
+    static private final long ATTACHMENT_STALENESS = CalendarWrapper.SECOND * 15L;
+    static private final long BULK_TIMEOUT         = CalendarWrapper.MINUTE * 20L;
+    static private final long INSTANCE_STALENESS   = CalendarWrapper.MINUTE;
+
     static public final String STORAGE_ATTACHMENT  = "storageattachment";
     static public final String STORAGE_PROPERTY    = "property/storage";
     static public final String STORAGE_VOLUME      = "storagevolume";
 
-    static private class Attachment {
-        public String id;
-        public String server;
-        public int index;
-    }
-
     private NimbulaDirector provider;
 
     public Storage(@Nonnull NimbulaDirector provider) { this.provider = provider; }
@@ -81,26 +91,30 @@ public class Storage implements VolumeSupport {
             logger.trace("ENTER - " + Storage.class.getName() + ".attach(" + volumeId + "," + toServer + "," + deviceId + ")");
         }
         try {
-            VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(toServer);
-
-            if( vm == null ) {
+            // a stale positive only costs a rejected POST, so the cache is good enough here
+            if( !provider.getComputeServices().getVirtualMachineSupport().exists(toServer, INSTANCE_STALENESS) ) {
                 throw new CloudException("No such virtual machine: " + toServer);
             }
-            ProviderContext ctx = provider.getContext();
+            int index;
 
-            if( ctx == null ) {
-                throw new CloudException("No context was specified for this request");
+            try {
+                index = Integer.parseInt(deviceId.trim());
             }
-            NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
-            HashMap<String,Object> state = new HashMap<String,Object>();
-
-            state.put("storage_volume_name", volumeId);
-            state.put("instance_name", toServer);
-            state.put("index", deviceId);
-            int code = method.post(state);
+            catch( NumberFormatException e ) {
+                // not an index we can track, so leave it for the cloud to reject
+                postAttachment(volumeId, toServer, deviceId);
+                return;
+            }
+            DeviceAllocator devices = provider.getDeviceAllocator();
+            boolean attached = false;
 
-            if( code == 401 ) {
-                throw new CloudException("Invalid server " + toServer + " or invalid volume " + volumeId);
+            devices.reserve(toServer, index, getAttachmentIndex(ATTACHMENT_STALENESS));
+            try {
+                postAttachment(volumeId, toServer, String.valueOf(index));
+                attached = true;
+            }
+            finally {
+                devices.release(toServer, index, attached);
             }
         }
         finally {
@@ -110,6 +124,158 @@ public class Storage implements VolumeSupport {
         }
     }
 
+    /**
+     * Attaches a volume to a virtual machine at the lowest device index that is neither in use nor reserved by
+     * another attach in flight through this provider session.
+     * @param volumeId the volume to attach
+     * @param toServer the virtual machine to attach it to
+     * @return the device index assigned to the volume
+     * @throws InternalException an error occurred processing the attachment list
+     * @throws CloudException the virtual machine does not exist, has no free index, or the attach failed
+     */
+    public @Nonnull String attach(@Nonnull String volumeId, @Nonnull String toServer) throws InternalException, CloudException {
+        if( !provider.getComputeServices().getVirtualMachineSupport().exists(toServer, INSTANCE_STALENESS) ) {
+            throw new CloudException("No such virtual machine: " + toServer);
+        }
+        return attachNext(volumeId, toServer, getAttachmentIndex(ATTACHMENT_STALENESS));
+    }
+
+    private @Nonnull String attachNext(@Nonnull String volumeId, @Nonnull String toServer, @Nonnull AttachmentIndex attachments) throws InternalException, CloudException {
+        DeviceAllocator devices = provider.getDeviceAllocator();
+        int index = devices.reserve(toServer, attachments);
+        boolean attached = false;
+
+        try {
+            postAttachment(volumeId, toServer, String.valueOf(index));
+            attached = true;
+            return String.valueOf(index);
+        }
+        finally {
+            devices.release(toServer, index, attached);
+        }
+    }
+
+    private void postAttachment(@Nonnull String volumeId, @Nonnull String toServer, @Nonnull String deviceId) throws InternalException, CloudException {
+        NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
+        HashMap<String,Object> state = new HashMap<String,Object>();
+
+        state.put("storage_volume_name", volumeId);
+        state.put("instance_name", toServer);
+        state.put("index", deviceId);
+        int code = method.post(state);
+
+        if( code == 401 ) {
+            throw new CloudException("Invalid server " + toServer + " or invalid volume " + volumeId);
+        }
+        // the cached attachment index is left alone: the device allocator holds the new index until a listing
+        // naturally taken after this attach shows it, so back-to-back attaches need no fresh listing
+        provider.getInventoryCache().remove(Volume.class, volumeId);
+    }
+
+    /**
+     * Attaches many volumes at once without blocking the caller. Volumes bound for the same virtual machine are
+     * attached one after another, each waiting for its volume to come online and taking the lowest device index
+     * not already in use on that virtual machine; different virtual machines proceed in parallel. Indexes in use
+     * are read from a single fresh attachment listing shared by the whole operation, and are reserved through the
+     * session's {@link DeviceAllocator} so that attaches made elsewhere in the session cannot collide. No worker
+     * thread blocks while a volume comes online; each attach is chained onto the {@link StatePoller} notice for
+     * its volume and in turn chains the next volume for the same virtual machine.
+     * @param volumeToServer the virtual machine to attach each volume to, keyed by volume; iteration order sets the
+     * attachment order on each virtual machine
+     * @param parallelism the maximum number of attach calls in flight at once
+     * @return a progress handle holding the assigned device index for each volume
+     * @throws InternalException an error occurred processing the attachment list
+     * @throws CloudException an error occurred listing attachments
+     */
+    public @Nonnull BulkProgress<String> attachAll(@Nonnull Map<String,String> volumeToServer, int parallelism) throws InternalException, CloudException {
+        final AttachmentIndex attachments = getAttachmentIndex(0L);
+        final long timeout = System.currentTimeMillis() + BULK_TIMEOUT;
+        final LinkedHashMap<String,List<String>> byServer = new LinkedHashMap<String,List<String>>();
+        final BulkProgress<String> progress = new BulkProgress<String>(volumeToServer.keySet());
+        final Instance vmSupport = provider.getComputeServices().getVirtualMachineSupport();
+        final StatePoller poller = provider.getStatePoller();
+        final ThrottledExecutor executor = new ThrottledExecutor(provider.getExecutor(), parallelism);
+
+        for( Map.Entry<String,String> entry : volumeToServer.entrySet() ) {
+            List<String> volumes = byServer.get(entry.getValue());
+
+            if( volumes == null ) {
+                volumes = new ArrayList<String>();
+                byServer.put(entry.getValue(), volumes);
+            }
+            volumes.add(entry.getKey());
+        }
+        for( Map.Entry<String,List<String>> entry : byServer.entrySet() ) {
+            final String serverId = entry.getKey();
+            final List<String> volumes = entry.getValue();
+            final List<SettableFuture<VolumeState>> online = new ArrayList<SettableFuture<VolumeState>>();
+
+            // every volume is watched from the start so the waits overlap even though the attaches are serial
+            for( String volumeId : volumes ) {
+                online.add(poller.waitUntilVolumeOnline(volumeId, Math.max(0L, timeout - System.currentTimeMillis())));
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if( !vmSupport.exists(serverId, INSTANCE_STALENESS) ) {
+                            throw new CloudException("No such virtual machine: " + serverId);
+                        }
+                    }
+                    catch( Throwable t ) {
+                        for( int i=0; i<volumes.size(); i++ ) {
+                            online.get(i).cancel(false);
+                            progress.failed(volumes.get(i), t);
+                        }
+                        return;
+                    }
+                    attachInOrder(serverId, volumes, online, 0, attachments, progress, executor);
+                }
+            });
+        }
+        return progress;
+    }
+
+    private void attachInOrder(@Nonnull final String serverId, @Nonnull final List<String> volumes, @Nonnull final List<SettableFuture<VolumeState>> online, @Nonnegative final int position, @Nonnull final AttachmentIndex attachments, @Nonnull final BulkProgress<String> progress, @Nonnull final ThrottledExecutor executor) {
+        if( position >= volumes.size() ) {
+            return;
+        }
+        final String volumeId = volumes.get(position);
+        final SettableFuture<VolumeState> ready = online.get(position);
+
+        ready.addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = ready.getError();
+
+                if( error == null && ready.isCancelled() ) {
+                    error = new InternalException("Volume tracking was cancelled");
+                }
+                if( error != null ) {
+                    logger.error("Failed to attach " + volumeId + " to " + serverId + ": " + error.getMessage());
+                    progress.failed(volumeId, error);
+                    attachInOrder(serverId, volumes, online, position + 1, attachments, progress, executor);
+                    return;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            progress.succeeded(volumeId, attachNext(volumeId, serverId, attachments));
+                        }
+                        catch( Throwable t ) {
+                            logger.error("Failed to attach " + volumeId + " to " + serverId + ": " + t.getMessage());
+                            progress.failed(volumeId, t);
+                        }
+                        finally {
+                            attachInOrder(serverId, volumes, online, position + 1, attachments, progress, executor);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     @Override
     public @Nonnull String create(@Nullable String fromSnapshot, @Nonnegative int sizeInGb, @Nonnull String inZone) throws InternalException, CloudException {
         String name = "Volume" + System.currentTimeMillis();
@@ -122,6 +288,35 @@ public class Storage implements VolumeSupport {
         }
     }
 
+    /**
+     * Creates many volumes at once without blocking the caller, with no more than <code>parallelism</code> create
+     * calls in flight.
+     * @param requests the volumes to create, keyed by a caller-chosen label used to report each outcome
+     * @param parallelism the maximum number of concurrent create calls
+     * @return a progress handle holding the new volume ID for each request
+     */
+    public @Nonnull BulkProgress<String> createAll(@Nonnull Map<String,VolumeCreateOptions> requests, int parallelism) {
+        final LinkedHashMap<String,VolumeCreateOptions> copy = new LinkedHashMap<String,VolumeCreateOptions>(requests);
+        final BulkProgress<String> progress = new BulkProgress<String>(copy.keySet());
+        ThrottledExecutor executor = new ThrottledExecutor(provider.getExecutor(), parallelism);
+
+        for( final Map.Entry<String,VolumeCreateOptions> request : copy.entrySet() ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        progress.succeeded(request.getKey(), createVolume(request.getValue()));
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Failed to create volume " + request.getKey() + ": " + t.getMessage());
+                        progress.failed(request.getKey(), t);
+                    }
+                }
+            });
+        }
+        return progress;
+    }
+
     @Override
     public @Nonnull String createVolume(@Nonnull VolumeCreateOptions options) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
@@ -142,17 +337,20 @@ public class Storage implements VolumeSupport {
         String productId = options.getVolumeProductId();
 
         if( productId != null ) {
+            // the cloud validates the property; a cached catalog may not yet list one an operator just added
             state.put("properties", productId);
         }
         state.put("status", "Online");
         method.post(state);
 
         try {
-            Volume volume = toVolume(ctx, getAttachmentList(), method.getResponseBody());
+            // a volume that was just created cannot be attached, so there is nothing to join
+            Volume volume = toVolume(ctx, null, method.getResponseBody());
 
             if( volume == null ) {
                 throw new CloudException("No volume was part of the response");
             }
+            provider.getInventoryCache().put(Volume.class, volume.getProviderVolumeId(), volume);
             return volume.getProviderVolumeId();
         }
         catch( JSONException e ) {
@@ -167,63 +365,102 @@ public class Storage implements VolumeSupport {
 
     @Override
     public void detach(@Nonnull String volumeId, boolean force) throws InternalException, CloudException {
-        Attachment attachment = getAttachment(getAttachmentList(), volumeId);
+        AttachmentIndex.Attachment attachment = getAttachmentIndex(0L).getAttachment(volumeId);
 
         if( attachment == null ) {
             throw new CloudException("The volume " + volumeId + " is not attached");
         }
         NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
 
-        method.delete(attachment.id);
+        method.delete(attachment.getAttachmentId());
+        provider.getInventoryCache().remove(Volume.class, volumeId);
+        provider.getInventoryCache().remove(AttachmentIndex.class, getAccountNumber());
     }
 
-    private @Nonnull JSONArray getAttachmentList() throws CloudException, InternalException {
+    /**
+     * Detaches many volumes at once without blocking the caller, with no more than <code>parallelism</code> detach
+     * calls in flight. Attachments are looked up in a single fresh attachment listing shared by the whole
+     * operation; volumes that are not attached fail immediately.
+     * @param volumeIds the volumes to detach
+     * @param parallelism the maximum number of concurrent detach calls
+     * @return a progress handle holding the virtual machine each volume was detached from
+     * @throws InternalException an error occurred processing the attachment list
+     * @throws CloudException an error occurred listing attachments
+     */
+    public @Nonnull BulkProgress<String> detachAll(@Nonnull Collection<String> volumeIds, int parallelism) throws InternalException, CloudException {
+        AttachmentIndex attachments = getAttachmentIndex(0L);
+        LinkedHashSet<String> ids = new LinkedHashSet<String>(volumeIds);
+        final BulkProgress<String> progress = new BulkProgress<String>(ids);
+        ThrottledExecutor executor = new ThrottledExecutor(provider.getExecutor(), parallelism);
+
+        for( final String volumeId : ids ) {
+            final AttachmentIndex.Attachment attachment = attachments.getAttachment(volumeId);
+
+            if( attachment == null ) {
+                progress.failed(volumeId, new CloudException("The volume " + volumeId + " is not attached"));
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
+
+                        method.delete(attachment.getAttachmentId());
+                        provider.getInventoryCache().remove(Volume.class, volumeId);
+                        provider.getInventoryCache().remove(AttachmentIndex.class, getAccountNumber());
+                        progress.succeeded(volumeId, attachment.getInstanceId());
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Failed to detach " + volumeId + ": " + t.getMessage());
+                        progress.failed(volumeId, t);
+                    }
+                }
+            });
+        }
+        return progress;
+    }
+
+    private @Nonnull String getAccountNumber() throws CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new CloudException("No context was specified with this request");
         }
-        NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
-
-        method.list();
-        try {
-            return method.getResponseBody().getJSONArray("result");
-        }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
-        }
+        return ctx.getAccountNumber();
     }
 
-    private @Nullable Attachment getAttachment(@Nonnull JSONArray rawAttachments, @Nonnull String volumeId) throws CloudException, InternalException {
-        try {
-            for( int i=0; i<rawAttachments.length(); i++ ) {
-                JSONObject json = rawAttachments.getJSONObject(i);
-
-                if( json.has("storage_volume_name") && json.getString("storage_volume_name").equals(volumeId) ) {
-                    Attachment a = new Attachment();
-
-                    a.id = (json.has("name") ? json.getString("name") : null);
-                    a.server = (json.has("instance_name") ? json.getString("instance_name") : null);
-                    a.index = (json.has("index") ? json.getInt("index") : 1);
-                    if( a.id == null || a.server == null ) {
-                        return null;
+    /**
+     * Provides the attachment index shared by every caller in this session. Concurrent callers that find no fresh
+     * enough index share a single <code>storageattachment</code> listing.
+     * @param maxStaleness the maximum acceptable age of the index in milliseconds; zero forces a fresh listing
+     * @return the attachment index
+     * @throws CloudException an error occurred listing attachments
+     * @throws InternalException an error occurred processing the attachment list
+     */
+    private @Nonnull AttachmentIndex getAttachmentIndex(@Nonnegative long maxStaleness) throws CloudException, InternalException {
+        AttachmentIndex index = provider.getInventoryCache().get(AttachmentIndex.class, getAccountNumber(), maxStaleness, new InventoryCache.Loader<AttachmentIndex>() {
+            @Override
+            public @Nonnull AttachmentIndex load() throws CloudException, InternalException {
+                NimbulaMethod method = new NimbulaMethod(provider, STORAGE_ATTACHMENT);
+                long listedAt = System.currentTimeMillis();
+
+                method.list();
+                try {
+                    return AttachmentIndex.fromJSON(method.getResponseBody().getJSONArray("result"), listedAt);
+                }
+                catch( JSONException e ) {
+                    if( logger.isDebugEnabled() ) {
+                        logger.error("Error parsing JSON: " + e.getMessage());
+                        e.printStackTrace();
                     }
-                    return a;
+                    throw new InternalException(e);
                 }
             }
-            return null;
-        }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
-        }
+        });
+
+        //noinspection ConstantConditions
+        return index;
     }
 
     @Override
@@ -248,19 +485,43 @@ public class Storage implements VolumeSupport {
 
     @Override
     public Volume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
+        return getVolume(volumeId, 0L);
+    }
+
+    /**
+     * Fetches a volume, accepting a copy from the provider's inventory cache if it is no older than the specified
+     * staleness.
+     * @param volumeId the volume to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the volume, or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nullable Volume getVolume(@Nonnull String volumeId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new CloudException("No context was specified for this request");
         }
+        InventoryCache cache = provider.getInventoryCache();
+        Volume volume = cache.get(Volume.class, volumeId, maxStaleness);
+
+        if( volume != null ) {
+            return volume;
+        }
         NimbulaMethod method = new NimbulaMethod(provider, STORAGE_VOLUME);
         int code = method.get(volumeId);
 
         if( code == 404 || code == 401 ) {
+            cache.remove(Volume.class, volumeId);
             return null;
         }
         try {
-            return toVolume(ctx, getAttachmentList(), method.getResponseBody());
+            volume = toVolume(ctx, null, method.getResponseBody());
+            if( volume != null ) {
+                cache.put(Volume.class, volumeId, volume);
+            }
+            return volume;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -281,18 +542,35 @@ public class Storage implements VolumeSupport {
         return false;
     }
 
-    static private ArrayList<String> deviceIds;
+    static private final List<String> deviceIds;
 
-    @Override
-    public @Nonnull Iterable<String> listPossibleDeviceIds(@Nonnull Platform platform) throws InternalException, CloudException {
-        if( deviceIds == null ) {
-            ArrayList<String> ids = new ArrayList<String>();
+    static {
+        ArrayList<String> ids = new ArrayList<String>();
 
-            for( int i=1; i<20; i++ ) {
-                ids.add(String.valueOf(i));
-            }
-            deviceIds = ids;
+        for( int i=1; i<=DeviceAllocator.MAXIMUM_DEVICE_INDEX; i++ ) {
+            ids.add(String.valueOf(i));
         }
+        deviceIds = Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * Lists the device indexes not in use or reserved on a virtual machine, consulting the shared attachment index.
+     * @param vmId the virtual machine of interest
+     * @return the free device indexes in ascending order
+     * @throws InternalException an error occurred processing the attachment list
+     * @throws CloudException an error occurred listing attachments
+     */
+    public @Nonnull Iterable<String> listFreeDeviceIds(@Nonnull String vmId) throws InternalException, CloudException {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( Integer i : provider.getDeviceAllocator().listFree(vmId, getAttachmentIndex(ATTACHMENT_STALENESS)) ) {
+            ids.add(String.valueOf(i));
+        }
+        return ids;
+    }
+
+    @Override
+    public @Nonnull Iterable<String> listPossibleDeviceIds(@Nonnull Platform platform) throws InternalException, CloudException {
         return deviceIds;
     }
 
@@ -301,23 +579,90 @@ public class Storage implements VolumeSupport {
         return Collections.singletonList(VolumeFormat.BLOCK);
     }
 
+    private @Nonnull VolumeProductCatalog getProductCatalog() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was specified with this request");
+        }
+        String endpoint = ctx.getEndpoint();
+
+        if( endpoint == null ) {
+            throw new CloudException("No endpoint was specified with this request");
+        }
+        return VolumeProductCatalog.getInstance(endpoint);
+    }
+
+    private @Nonnull InventoryCache.Loader<Map<String,VolumeProduct>> getProductLoader() {
+        return new InventoryCache.Loader<Map<String,VolumeProduct>>() {
+            @Override
+            public @Nonnull Map<String,VolumeProduct> load() throws CloudException, InternalException {
+                NimbulaMethod method = new NimbulaMethod(provider, STORAGE_PROPERTY);
+
+                method.list();
+                try {
+                    LinkedHashMap<String,VolumeProduct> products = new LinkedHashMap<String,VolumeProduct>();
+                    JSONArray array = method.getResponseBody().getJSONArray("result");
+
+                    for( int i=0; i<array.length(); i++ ) {
+                        VolumeProduct product = toProduct(array.getJSONObject(i));
+
+                        if( product != null ) {
+                            products.put(product.getProviderProductId(), product);
+                        }
+                    }
+                    return products;
+                }
+                catch( JSONException e ) {
+                    if( logger.isDebugEnabled() ) {
+                        logger.error("Error parsing JSON: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                    throw new InternalException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Looks up a storage property by name from the endpoint's cached product catalog.
+     * @param productId the storage property name
+     * @return the matching product, or <code>null</code> if the endpoint offers no such property
+     * @throws InternalException an error occurred processing the catalog
+     * @throws CloudException an error occurred loading the catalog
+     */
+    public @Nullable VolumeProduct getVolumeProduct(@Nonnull String productId) throws InternalException, CloudException {
+        return getProductCatalog().getProduct(productId, getProductLoader(), provider.getExecutor());
+    }
+
+    /**
+     * Discards the cached product catalog for this endpoint so the next read lists the storage properties again.
+     * Use after adding or removing storage properties.
+     * @throws CloudException no endpoint is set for this session
+     */
+    public void invalidateVolumeProducts() throws CloudException {
+        getProductCatalog().invalidate();
+    }
+
     @Override
     public @Nonnull Iterable<VolumeProduct> listVolumeProducts() throws InternalException, CloudException {
-        NimbulaMethod method = new NimbulaMethod(provider, STORAGE_PROPERTY);
+        return getProductCatalog().list(getProductLoader(), provider.getExecutor());
+    }
+
+    @Override
+    public @Nonnull Iterable<ResourceStatus> listVolumeStatus() throws InternalException, CloudException {
+        NimbulaMethod method = new NimbulaMethod(provider, STORAGE_VOLUME);
 
         method.list();
         try {
-            ArrayList<VolumeProduct> products = new ArrayList<VolumeProduct>();
-            JSONArray array = method.getResponseBody().getJSONArray("result");
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
 
-            for( int i=0; i<array.length(); i++ ) {
-                VolumeProduct product = toProduct(array.getJSONObject(i));
+            for( Map.Entry<String,String> entry : method.getResultProjection("name", "status").entrySet() ) {
+                String state = entry.getValue();
 
-                if( product != null ) {
-                    products.add(product);
-                }
+                status.add(new ResourceStatus(entry.getKey(), state == null ? VolumeState.PENDING : toState(state)));
             }
-            return products;
+            return status;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -328,14 +673,16 @@ public class Storage implements VolumeSupport {
         }
     }
 
-    @Override
-    public @Nonnull Iterable<ResourceStatus> listVolumeStatus() throws InternalException, CloudException {
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
-
-        for( Volume v : listVolumes() ) {
-            status.add(new ResourceStatus(v.getProviderVolumeId(), v.getCurrentState()));
-        }
-        return status;
+    /**
+     * Lists the attachments of every volume attached to the specified virtual machine from a single read of the
+     * attachment list, without fetching or mapping any volumes.
+     * @param vmId the virtual machine of interest
+     * @return the attachments on that virtual machine, including the device index of each
+     * @throws InternalException an error occurred processing the attachment list
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull Collection<AttachmentIndex.Attachment> listAttachments(@Nonnull String vmId) throws InternalException, CloudException {
+        return getAttachmentIndex(ATTACHMENT_STALENESS).getAttachments(vmId);
     }
 
     @Override
@@ -346,21 +693,23 @@ public class Storage implements VolumeSupport {
             throw new CloudException("No context was specified with this request");
         }
         NimbulaMethod method = new NimbulaMethod(provider, STORAGE_VOLUME);
+        long listedAt = System.currentTimeMillis();
 
         method.list();
         try {
-            JSONArray attachmentList = getAttachmentList();
-            ArrayList<Volume> volumes = new ArrayList<Volume>();
+            AttachmentIndex attachments = getAttachmentIndex(0L);
+            LinkedHashMap<String,Volume> volumes = new LinkedHashMap<String,Volume>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
 
             for( int i=0; i<array.length(); i++ ) {
-                Volume volume = toVolume(ctx, attachmentList, array.getJSONObject(i));
+                Volume volume = toVolume(ctx, attachments, array.getJSONObject(i));
 
                 if( volume != null ) {
-                    volumes.add(volume);
+                    volumes.put(volume.getProviderVolumeId(), volume);
                 }
             }
-            return volumes;
+            provider.getInventoryCache().replaceAll(Volume.class, volumes, listedAt);
+            return new ArrayList<Volume>(volumes.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -371,6 +720,53 @@ public class Storage implements VolumeSupport {
         }
     }
 
+    /**
+     * Lists the names of every volume in the account using the directory form of the API. Each handle fetches the
+     * full volume, together with the rest of its batch, only when accessed.
+     * @param batchSize the number of handles whose details are fetched together
+     * @return lazy handles on the volumes in the account
+     * @throws InternalException an error occurred processing a directory listing
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull List<LazyResource<Volume>> listVolumeHandles(@Nonnegative int batchSize) throws InternalException, CloudException {
+        return new LazyListing<Volume>(provider, STORAGE_VOLUME, batchSize) {
+            @Override
+            protected @Nullable Volume fetch(@Nonnull String providerId) throws CloudException, InternalException {
+                return getVolume(providerId);
+            }
+        }.list();
+    }
+
+    /**
+     * Lists every volume in the account by discovering the user containers and fetching them concurrently.
+     * Results stream back as each user's container is read. The attachment index is read once up front and
+     * shared by every user's listing.
+     * @param parallelism the maximum number of user containers fetched at once
+     * @return the volumes in the account
+     * @throws InternalException an error occurred processing the discovery response
+     * @throws CloudException discovery failed
+     */
+    public @Nonnull Iterable<Volume> listVolumesByUser(@Nonnegative int parallelism) throws InternalException, CloudException {
+        final ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was specified with this request");
+        }
+        final AttachmentIndex attachments = getAttachmentIndex(0L);
+
+        return new ContainerFanOut<Volume>(provider, STORAGE_VOLUME, Volume.class, parallelism) {
+            @Override
+            protected @Nullable Volume toResource(@Nonnull JSONObject ob) throws CloudException, InternalException {
+                return toVolume(ctx, attachments, ob);
+            }
+
+            @Override
+            protected @Nonnull String getId(@Nonnull Volume volume) {
+                return volume.getProviderVolumeId();
+            }
+        }.list();
+    }
+
     @Override
     public boolean isSubscribed() throws CloudException, InternalException {
         return provider.getComputeServices().getVirtualMachineSupport().isSubscribed();
@@ -381,6 +777,7 @@ public class Storage implements VolumeSupport {
         NimbulaMethod method = new NimbulaMethod(provider, STORAGE_VOLUME);
 
         method.delete(volumeId);
+        provider.getInventoryCache().remove(Volume.class, volumeId);
     }
 
     @Override
@@ -388,7 +785,20 @@ public class Storage implements VolumeSupport {
         return new String[0];
     }
 
-    private @Nonnull VolumeState toState(@Nonnull String status) {
+    /**
+     * @param status a raw Nimbula volume status, possibly a comma-separated list such as <code>online,attached</code>
+     * @return true if one of the listed statuses is exactly <code>attached</code>
+     */
+    static boolean isAttached(@Nonnull String status) {
+        for( String p : status.split(",") ) {
+            if( p.trim().equalsIgnoreCase("attached") ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static @Nonnull VolumeState toState(@Nonnull String status) {
         if( status.equalsIgnoreCase("online") ) {
             return VolumeState.AVAILABLE;
         }
@@ -423,7 +833,7 @@ public class Storage implements VolumeSupport {
         }
     }
 
-    private @Nullable Volume toVolume(@Nonnull ProviderContext ctx, @Nonnull JSONArray attachmentList, @Nullable JSONObject json) throws CloudException, InternalException {
+    private @Nullable Volume toVolume(@Nonnull ProviderContext ctx, @Nullable AttachmentIndex attachments, @Nullable JSONObject json) throws CloudException, InternalException {
         if( json == null ) {
             return null;
         }
@@ -447,11 +857,14 @@ public class Storage implements VolumeSupport {
 
                 volume.setCurrentState(toState(status));
                 if( status.contains("Attached") ) {
-                    Attachment attachment = getAttachment(attachmentList, volume.getProviderVolumeId());
+                    if( attachments == null ) {
+                        attachments = getAttachmentIndex(ATTACHMENT_STALENESS);
+                    }
+                    AttachmentIndex.Attachment attachment = attachments.getAttachment(volume.getProviderVolumeId());
 
                     if( attachment != null ){
-                        volume.setProviderVirtualMachineId(attachment.server);
-                        volume.setDeviceId(String.valueOf(attachment.index));
+                        volume.setProviderVirtualMachineId(attachment.getInstanceId());
+                        volume.setDeviceId(String.valueOf(attachment.getIndex()));
                     }
                 }
             }
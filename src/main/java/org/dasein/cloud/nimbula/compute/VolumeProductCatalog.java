@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VolumeProduct;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.NimbulaDirector;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Catalog of the storage properties offered by a Nimbula endpoint, shared by every provider session talking to that
+ * endpoint. The catalog is held for {@link #TIME_TO_LIVE}; once it is older than {@link #REFRESH_AHEAD} a read
+ * returns the current copy and starts a background reload, so callers only block on the very first load or after
+ * a long idle period. Operators who add storage properties can force a reload with {@link #invalidate()}.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class VolumeProductCatalog {
+    static private final Logger logger = NimbulaDirector.getLogger(VolumeProductCatalog.class);
+
+    static public final long REFRESH_AHEAD = CalendarWrapper.MINUTE * 45L;
+    static public final long TIME_TO_LIVE  = CalendarWrapper.HOUR;
+
+    static private final ConcurrentHashMap<String,VolumeProductCatalog> catalogs = new ConcurrentHashMap<String,VolumeProductCatalog>();
+
+    /**
+     * Provides the catalog for an endpoint.
+     * @param endpoint the API endpoint
+     * @return the catalog shared by every session using that endpoint
+     */
+    static public @Nonnull VolumeProductCatalog getInstance(@Nonnull String endpoint) {
+        VolumeProductCatalog catalog = catalogs.get(endpoint);
+
+        if( catalog == null ) {
+            VolumeProductCatalog existing;
+
+            catalog = new VolumeProductCatalog(endpoint);
+            existing = catalogs.putIfAbsent(endpoint, catalog);
+            if( existing != null ) {
+                catalog = existing;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Forces every endpoint's catalog to reload on its next read.
+     */
+    static public void invalidateAll() {
+        for( VolumeProductCatalog catalog : catalogs.values() ) {
+            catalog.invalidate();
+        }
+    }
+
+    private final String                       endpoint;
+    private long                               generation = 0L;
+    private volatile long                      loadedAt   = 0L;
+    private volatile Map<String,VolumeProduct> products   = null;
+    private boolean                            refreshing = false;
+
+    private VolumeProductCatalog(@Nonnull String endpoint) { this.endpoint = endpoint; }
+
+    private @Nonnull Map<String,VolumeProduct> current(@Nonnull InventoryCache.Loader<Map<String,VolumeProduct>> loader, @Nonnull Executor executor) throws CloudException, InternalException {
+        Map<String,VolumeProduct> snapshot = products;
+        long age = System.currentTimeMillis() - loadedAt;
+
+        if( snapshot == null || age > TIME_TO_LIVE ) {
+            return load(loader);
+        }
+        if( age > REFRESH_AHEAD ) {
+            refreshAhead(loader, executor);
+        }
+        return snapshot;
+    }
+
+    private synchronized @Nonnull Map<String,VolumeProduct> load(@Nonnull InventoryCache.Loader<Map<String,VolumeProduct>> loader) throws CloudException, InternalException {
+        // another caller may have finished loading while this one waited for the lock
+        if( products != null && (System.currentTimeMillis() - loadedAt) <= TIME_TO_LIVE ) {
+            return products;
+        }
+        long started = System.currentTimeMillis();
+        Map<String,VolumeProduct> loaded = loader.load();
+
+        if( loaded == null ) {
+            loaded = Collections.emptyMap();
+        }
+        products = Collections.unmodifiableMap(loaded);
+        loadedAt = started;
+        return products;
+    }
+
+    private void refreshAhead(@Nonnull final InventoryCache.Loader<Map<String,VolumeProduct>> loader, @Nonnull Executor executor) {
+        final long startedGeneration;
+
+        synchronized( this ) {
+            if( refreshing ) {
+                return;
+            }
+            refreshing = true;
+            startedGeneration = generation;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long started = System.currentTimeMillis();
+                        Map<String,VolumeProduct> loaded = loader.load();
+
+                        synchronized( VolumeProductCatalog.this ) {
+                            // an invalidation during the reload means it may predate the operator's change
+                            if( loaded != null && generation == startedGeneration ) {
+                                products = Collections.unmodifiableMap(loaded);
+                                loadedAt = started;
+                            }
+                        }
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to refresh volume products for " + endpoint + ": " + t.getMessage());
+                    }
+                    finally {
+                        synchronized( VolumeProductCatalog.this ) {
+                            refreshing = false;
+                        }
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            synchronized( this ) {
+                refreshing = false;
+            }
+        }
+    }
+
+    /**
+     * Looks up a storage property by name.
+     * @param name the storage property name
+     * @param loader lists the storage properties if the catalog must be loaded
+     * @param executor runs background refreshes
+     * @return the matching product, or <code>null</code> if the endpoint offers no such property
+     * @throws CloudException an error occurred loading the catalog
+     * @throws InternalException an error occurred processing the catalog
+     */
+    public @Nullable VolumeProduct getProduct(@Nonnull String name, @Nonnull InventoryCache.Loader<Map<String,VolumeProduct>> loader, @Nonnull Executor executor) throws CloudException, InternalException {
+        return current(loader, executor).get(name);
+    }
+
+    /**
+     * Forces the catalog to reload on its next read.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        products = null;
+        loadedAt = 0L;
+    }
+
+    /**
+     * Lists every storage property offered by the endpoint.
+     * @param loader lists the storage properties if the catalog must be loaded
+     * @param executor runs background refreshes
+     * @return the products in listing order
+     * @throws CloudException an error occurred loading the catalog
+     * @throws InternalException an error occurred processing the catalog
+     */
+    public @Nonnull List<VolumeProduct> list(@Nonnull InventoryCache.Loader<Map<String,VolumeProduct>> loader, @Nonnull Executor executor) throws CloudException, InternalException {
+        return new ArrayList<VolumeProduct>(current(loader, executor).values());
+    }
+}
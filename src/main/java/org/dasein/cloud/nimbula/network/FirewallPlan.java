@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.cloud.network.FirewallRule;
+import org.dasein.cloud.nimbula.BulkProgress;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The difference between the rules a security list has and the rules it should have, as computed by
+ * {@link SecurityList#plan(String, java.util.Collection)}. A plan returned by
+ * {@link SecurityList#reconcile(String, java.util.Collection, int)} also carries the progress of applying it: each
+ * rule to authorize is tracked under its description and each rule to revoke under its rule ID.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class FirewallPlan {
+    private final LinkedHashSet<String>              applications = new LinkedHashSet<String>();
+    private final LinkedHashMap<String,FirewallRule> authorize    = new LinkedHashMap<String,FirewallRule>();
+    private final String                             firewallId;
+    private final LinkedHashSet<String>              ipLists      = new LinkedHashSet<String>();
+    private BulkProgress<String>                     progress     = null;
+    private final ArrayList<String>                  revoke       = new ArrayList<String>();
+    private int                                      unchanged    = 0;
+
+    FirewallPlan(@Nonnull String firewallId) { this.firewallId = firewallId; }
+
+    void addApplication(@Nonnull String applicationKey) {
+        applications.add(applicationKey);
+    }
+
+    void addAuthorization(@Nonnull String description, @Nonnull FirewallRule rule) {
+        authorize.put(description, rule);
+    }
+
+    void addIpList(@Nonnull String cidr) {
+        ipLists.add(cidr);
+    }
+
+    void addRevocation(@Nonnull String ruleId) {
+        revoke.add(ruleId);
+    }
+
+    void addUnchanged() {
+        unchanged++;
+    }
+
+    /**
+     * @return the security applications that must be created, as <code>protocol:dport</code> keys
+     */
+    public @Nonnull List<String> getApplicationsToCreate() {
+        return new ArrayList<String>(applications);
+    }
+
+    public @Nonnull String getFirewallId() {
+        return firewallId;
+    }
+
+    /**
+     * @return the CIDRs that need a security IP list created for them
+     */
+    public @Nonnull List<String> getIpListsToCreate() {
+        return new ArrayList<String>(ipLists);
+    }
+
+    /**
+     * @return the progress of applying this plan, or <code>null</code> if it has only been planned
+     */
+    public synchronized @Nullable BulkProgress<String> getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the rules to authorize, keyed by the description their progress is tracked under
+     */
+    public @Nonnull Map<String,FirewallRule> getRulesToAuthorize() {
+        return Collections.unmodifiableMap(authorize);
+    }
+
+    /**
+     * @return the IDs of the rules to revoke
+     */
+    public @Nonnull List<String> getRulesToRevoke() {
+        return Collections.unmodifiableList(revoke);
+    }
+
+    /**
+     * @return the number of desired rules already in place
+     */
+    public @Nonnegative int getUnchangedCount() {
+        return unchanged;
+    }
+
+    /**
+     * @return true if the security list already matches the desired rules
+     */
+    public boolean isEmpty() {
+        return (authorize.isEmpty() && revoke.isEmpty());
+    }
+
+    synchronized void setProgress(@Nonnull BulkProgress<String> progress) {
+        this.progress = progress;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (firewallId + ": +" + authorize.size() + " -" + revoke.size() + " =" + unchanged);
+    }
+}
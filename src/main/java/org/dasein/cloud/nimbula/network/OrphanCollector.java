@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.network;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.nimbula.BulkProgress;
+import org.dasein.cloud.nimbula.NimbulaDirector;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Deletes orphaned <code>dsn_</code> security applications and IP lists each time it runs, for use with a
+ * {@link java.util.concurrent.ScheduledExecutorService}. Failures are logged rather than thrown so that a periodic
+ * schedule is not cancelled by one bad run.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class OrphanCollector implements Runnable {
+    static private final Logger logger = NimbulaDirector.getLogger(OrphanCollector.class);
+
+    private final int             parallelism;
+    private final NimbulaDirector provider;
+
+    /**
+     * @param provider the provider session to collect with
+     * @param parallelism the maximum number of concurrent deletions
+     */
+    public OrphanCollector(@Nonnull NimbulaDirector provider, @Nonnegative int parallelism) {
+        this.provider = provider;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void run() {
+        try {
+            OrphanReport report = provider.getNetworkServices().getFirewallSupport().collectOrphans(false, parallelism);
+            BulkProgress<String> progress = report.getProgress();
+
+            if( progress != null ) {
+                progress.await(SecurityList.COLLECTION_TIMEOUT);
+                if( progress.getFailedCount() > 0 ) {
+                    logger.warn("Failed to delete " + progress.getFailedCount() + " of " + progress.getTotalCount() + " orphaned security objects");
+                }
+            }
+            if( logger.isInfoEnabled() && !report.isEmpty() ) {
+                logger.info("Collected orphaned security objects: " + report);
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        catch( Throwable t ) {
+            logger.error("Orphaned security object collection failed: " + t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dasein.cloud.nimbula.BulkProgress;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The security applications and IP lists this provider created that no security rule references any longer, as
+ * found by {@link SecurityList#collectOrphans(boolean, int)}. Unless the collection was a dry run, the report also
+ * carries the progress of deleting them, tracked by object name.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class OrphanReport {
+    private final List<String>   applications;
+    private final List<String>   ipLists;
+    private BulkProgress<String> progress = null;
+
+    OrphanReport(@Nonnull List<String> applications, @Nonnull List<String> ipLists) {
+        this.applications = Collections.unmodifiableList(new ArrayList<String>(applications));
+        this.ipLists = Collections.unmodifiableList(new ArrayList<String>(ipLists));
+    }
+
+    /**
+     * @return the names of the orphaned security applications
+     */
+    public @Nonnull List<String> getApplications() {
+        return applications;
+    }
+
+    /**
+     * @return the names of the orphaned security IP lists
+     */
+    public @Nonnull List<String> getIpLists() {
+        return ipLists;
+    }
+
+    /**
+     * @return the progress of deleting the orphans, or <code>null</code> for a dry run
+     */
+    public synchronized @Nullable BulkProgress<String> getProgress() {
+        return progress;
+    }
+
+    public boolean isEmpty() {
+        return (applications.isEmpty() && ipLists.isEmpty());
+    }
+
+    synchronized void setProgress(@Nonnull BulkProgress<String> progress) {
+        this.progress = progress;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (applications.size() + " applications, " + ipLists.size() + " IP lists");
+    }
+}
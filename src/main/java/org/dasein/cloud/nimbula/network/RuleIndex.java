@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.network;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Index over a <code>secrule</code> listing, keyed by destination security list and by the source list,
+ * application and action a rule is revoked by. Building it is a single pass over the listing; afterwards the rules
+ * of one firewall, or of every firewall, are read without scanning the account's rules again. Rules whose
+ * destination is an IP list are not indexed, as no firewall operation uses them. The index is updated in place as
+ * this provider session authorizes and revokes rules.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class RuleIndex {
+    /**
+     * Indexes the raw <code>result</code> array of a <code>secrule</code> listing.
+     * @param array the listing
+     * @param listedAt when the listing was requested
+     * @return the rule index
+     * @throws JSONException the listing is malformed
+     */
+    static @Nonnull RuleIndex fromJSON(@Nonnull JSONArray array, @Nonnegative long listedAt) throws JSONException {
+        RuleIndex index = new RuleIndex(listedAt);
+
+        for( int i=0; i<array.length(); i++ ) {
+            JSONObject ob = array.getJSONObject(i);
+
+            if( ob != null ) {
+                index.add(ob);
+            }
+        }
+        return index;
+    }
+
+    static private @Nonnull String toMatchKey(@Nonnull String destinationList, @Nonnull String sourceList, @Nonnull String application, @Nonnull String action) {
+        return (destinationList + " " + sourceList + " " + application + " " + action.toLowerCase());
+    }
+
+    private final Map<String,Map<String,JSONObject>> byDestination = new LinkedHashMap<String,Map<String,JSONObject>>();
+    private final Map<String,Set<String>>            byMatch       = new HashMap<String,Set<String>>();
+    private final Map<String,JSONObject>             rules         = new HashMap<String,JSONObject>();
+    private final long                               timestamp;
+
+    private RuleIndex(long timestamp) { this.timestamp = timestamp; }
+
+    /**
+     * Adds a rule to the index, replacing any rule of the same name.
+     * @param ob the raw rule
+     * @throws JSONException the rule is malformed
+     */
+    synchronized void add(@Nonnull JSONObject ob) throws JSONException {
+        if( !ob.has("name") || !ob.has("dst_list") ) {
+            return;
+        }
+        if( ob.has("dst_is_ip") && ob.getBoolean("dst_is_ip") ) {
+            return;
+        }
+        String name = ob.getString("name");
+        String destination = ob.getString("dst_list");
+
+        remove(name);
+        rules.put(name, ob);
+
+        Map<String,JSONObject> destinationRules = byDestination.get(destination);
+
+        if( destinationRules == null ) {
+            destinationRules = new LinkedHashMap<String,JSONObject>();
+            byDestination.put(destination, destinationRules);
+        }
+        destinationRules.put(name, ob);
+
+        String key = getMatchKey(ob);
+
+        if( key != null ) {
+            Set<String> names = byMatch.get(key);
+
+            if( names == null ) {
+                names = new LinkedHashSet<String>();
+                byMatch.put(key, names);
+            }
+            names.add(name);
+        }
+    }
+
+    /**
+     * Finds the rules granting or denying a source IP list access through an application to a security list.
+     * @param destinationList the destination, e.g. <code>seclist:/acct/user/web</code>
+     * @param sourceList the source, e.g. <code>seciplist:/acct/user/dsn10_0_0_0_8</code>
+     * @param application the application name
+     * @param action the rule action, <code>permit</code> or <code>deny</code> in any case
+     * @return the names of the matching rules
+     */
+    public synchronized @Nonnull Collection<String> find(@Nonnull String destinationList, @Nonnull String sourceList, @Nonnull String application, @Nonnull String action) {
+        Set<String> names = byMatch.get(toMatchKey(destinationList, sourceList, application, action));
+
+        if( names == null ) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * @return the destination security lists that have at least one rule
+     */
+    public synchronized @Nonnull Collection<String> getDestinations() {
+        return new ArrayList<String>(byDestination.keySet());
+    }
+
+    private @Nullable String getMatchKey(@Nonnull JSONObject ob) throws JSONException {
+        if( !ob.has("src_list") || !ob.has("application") || !ob.has("action") || ob.isNull("action") ) {
+            return null;
+        }
+        return toMatchKey(ob.getString("dst_list"), ob.getString("src_list"), ob.getString("application"), ob.getString("action"));
+    }
+
+    /**
+     * @param destinationList the destination, e.g. <code>seclist:/acct/user/web</code>
+     * @return the raw rules targeting that security list, in listing order
+     */
+    public synchronized @Nonnull List<JSONObject> getRules(@Nonnull String destinationList) {
+        Map<String,JSONObject> destinationRules = byDestination.get(destinationList);
+
+        if( destinationRules == null ) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<JSONObject>(destinationRules.values());
+    }
+
+    /**
+     * @return when the listing behind this index was requested
+     */
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Drops a rule from the index.
+     * @param name the rule name
+     */
+    synchronized void remove(@Nonnull String name) {
+        JSONObject ob = rules.remove(name);
+
+        if( ob == null ) {
+            return;
+        }
+        try {
+            Map<String,JSONObject> destinationRules = byDestination.get(ob.getString("dst_list"));
+
+            if( destinationRules != null ) {
+                destinationRules.remove(name);
+                if( destinationRules.isEmpty() ) {
+                    byDestination.remove(ob.getString("dst_list"));
+                }
+            }
+            String key = getMatchKey(ob);
+
+            if( key != null ) {
+                Set<String> names = byMatch.get(key);
+
+                if( names != null ) {
+                    names.remove(name);
+                    if( names.isEmpty() ) {
+                        byMatch.remove(key);
+                    }
+                }
+            }
+        }
+        catch( JSONException ignore ) {
+            // the rule was indexed, so these fields were readable when it was added
+        }
+    }
+
+    public synchronized @Nonnegative int size() {
+        return rules.size();
+    }
+}
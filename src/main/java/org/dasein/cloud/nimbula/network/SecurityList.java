@@ -23,7 +23,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
@@ -41,8 +51,16 @@ import org.dasein.cloud.network.Permission;
 import org.dasein.cloud.network.Protocol;
 import org.dasein.cloud.network.RuleTarget;
 import org.dasein.cloud.network.RuleTargetType;
+import org.dasein.cloud.nimbula.BulkProgress;
+import org.dasein.cloud.nimbula.ContainerFanOut;
+import org.dasein.cloud.nimbula.InventoryCache;
+import org.dasein.cloud.nimbula.LazyListing;
+import org.dasein.cloud.nimbula.LazyResource;
 import org.dasein.cloud.nimbula.NimbulaDirector;
 import org.dasein.cloud.nimbula.NimbulaMethod;
+import org.dasein.cloud.nimbula.SettableFuture;
+import org.dasein.cloud.nimbula.ThrottledExecutor;
+import org.dasein.util.CalendarWrapper;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -52,8 +70,27 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 public class SecurityList implements FirewallSupport {
+    /**
+     * Reads a security application the session's application lookup does not know, such as a public one.
+     */
+    static interface ApplicationReader {
+        public @Nullable JSONObject read(@Nonnull String name) throws CloudException, InternalException;
+    }
+
     static private final Logger logger = NimbulaDirector.getLogger(SecurityList.class);
+
+    static private final long CREATE_TIMEOUT   = CalendarWrapper.MINUTE * 2L;
+    static private final long ORPHAN_GRACE     = CalendarWrapper.MINUTE * 10L;
+    static private final long LOOKUP_STALENESS = CalendarWrapper.MINUTE * 10L;
+    static private final long PREFETCH_TIMEOUT = CalendarWrapper.MINUTE * 2L;
+    static private final long RULE_STALENESS   = CalendarWrapper.MINUTE * 5L;
+
+    static private final ConcurrentHashMap<String,SettableFuture<String>> creations     = new ConcurrentHashMap<String,SettableFuture<String>>();
+    static private final AtomicLong                                       lastRuleStamp = new AtomicLong(0L);
+    // when collection first saw each dsn_ object, keyed by account and name, with no rule referencing it
+    static private final ConcurrentHashMap<String,Long>                   unreferenced  = new ConcurrentHashMap<String,Long>();
     
+    static public final long   COLLECTION_TIMEOUT   = CalendarWrapper.MINUTE * 30L;
     static public final String SECURITY_APPLICATION = "secapplication";
     static public final String SECURITY_IP_LIST     = "seciplist";
     static public final String SECURITY_LIST        = "seclist";
@@ -71,8 +108,7 @@ public class SecurityList implements FirewallSupport {
         state.put("protocol", name);
         state.put("dport", dport);
         state.put("uri", null);
-        name = (name + dport.replaceAll("-", "_"));
-        state.put("name", provider.getNamePrefix() + "/dsn_" + name);
+        state.put("name", toApplicationName(provider.getNamePrefix(), name, dport));
         state.put("icmptype", "");
         state.put("icmpcode", "");
         method.post(state);
@@ -96,7 +132,7 @@ public class SecurityList implements FirewallSupport {
         
         state.put("secipentries", Collections.singletonList(cidr));
         state.put("uri", null);
-        state.put("name", provider.getNamePrefix() + "/dsn" + cidr.replaceAll("\\.", "_").replaceAll("/", "_"));
+        state.put("name", toIpListName(provider.getNamePrefix(), cidr));
         method.post(state);
         try {
             JSONObject ob = method.getResponseBody();
@@ -112,77 +148,176 @@ public class SecurityList implements FirewallSupport {
         }
     }
     
-    private String getApplicationId(Protocol protocol, int startPort, int endPort, boolean create) throws InternalException, CloudException {
-        String dport = String.valueOf(startPort);
-        
-        if( endPort > startPort ) {
-            dport = dport + "-" + endPort;
+    private String getApplicationId(final Protocol protocol, int startPort, int endPort, boolean create) throws InternalException, CloudException {
+        final String dport = toDport(startPort, endPort);
+        String key = SecurityLookup.toApplicationKey(protocol.name().toLowerCase(), dport);
+        String name = findName(SECURITY_APPLICATION, key, create);
+
+        if( name != null || !create ) {
+            return name;
         }
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_APPLICATION);
-        
-        method.list();
-        try {
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-            
-            for( int i=0; i<array.length(); i++ ) {
-                JSONObject ob = array.getJSONObject(i);
-                
-                if( ob.has("protocol") && ob.getString("protocol").equals(protocol.name().toLowerCase()) ) {
-                    if( ob.has("dport") && ob.getString("dport").equals(dport) ) {
-                        return ob.getString("name");
-                    }
-                }
-            }
-            if( create ) {
+        return createOnce(SECURITY_APPLICATION, key, new InventoryCache.Loader<String>() {
+            @Override
+            public @Nonnull String load() throws CloudException, InternalException {
                 return createApplication(protocol, dport);
             }
-            return null;
+        });
+    }
+    
+    private String getIpListId(final String forCidr, boolean create) throws InternalException, CloudException {
+        String name = findName(SECURITY_IP_LIST, forCidr, create);
+
+        if( name != null || !create ) {
+            return name;
         }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
+        return createOnce(SECURITY_IP_LIST, forCidr, new InventoryCache.Loader<String>() {
+            @Override
+            public @Nonnull String load() throws CloudException, InternalException {
+                return createList(forCidr);
             }
-            throw new InternalException(e);
-        }
+        });
     }
-    
-    private String getIpListId(String forCidr, boolean create) throws InternalException, CloudException {
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_IP_LIST);
-        
-        method.list();
+
+    /**
+     * Creates an application or IP list unless another caller is already creating the same one, in which case this
+     * caller waits for and shares that creation. Creations are shared across provider sessions for the same account,
+     * since they would otherwise race for the same <code>dsn_</code> name.
+     * @param resource {@link #SECURITY_APPLICATION} or {@link #SECURITY_IP_LIST}
+     * @param key the lookup key of the object
+     * @param creator creates the object and returns its name
+     * @return the name of the object
+     * @throws CloudException the creation failed in the cloud
+     * @throws InternalException the creation failed locally
+     */
+    private @Nonnull String createOnce(@Nonnull String resource, @Nonnull String key, @Nonnull InventoryCache.Loader<String> creator) throws CloudException, InternalException {
+        String creationId = getCacheId(resource) + ":" + key;
+        SettableFuture<String> creation = new SettableFuture<String>();
+        SettableFuture<String> existing = creations.putIfAbsent(creationId, creation);
+
+        if( existing != null ) {
+            String name = existing.await(CREATE_TIMEOUT);
+
+            if( name == null ) {
+                throw new CloudException("Unable to create " + resource + " for " + key);
+            }
+            return name;
+        }
         try {
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-            String ipListId = null;
-            
-            for( int i=0; i<array.length(); i++ ) {
-                JSONObject ob = array.getJSONObject(i);
-                
-                if( ob.has("secipentries") ) {
-                    JSONArray entries = ob.getJSONArray("secipentries");
-                    
-                    if( entries.length() != 1 ) {
-                        continue;
+            // a creation that finished between this caller's miss and now is already in the lookup
+            String name = getLookup(resource, LOOKUP_STALENESS).getName(key);
+
+            if( name == null ) {
+                try {
+                    name = creator.load();
+                }
+                catch( CloudException e ) {
+                    name = resolveConflict(resource, key, e);
+                }
+                if( name == null ) {
+                    throw new CloudException("Unable to create " + resource + " for " + key);
+                }
+                getLookup(resource, LOOKUP_STALENESS).put(key, name);
+            }
+            creation.complete(name);
+            return name;
+        }
+        catch( CloudException e ) {
+            creation.fail(e);
+            throw e;
+        }
+        catch( InternalException e ) {
+            creation.fail(e);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            creation.fail(e);
+            throw e;
+        }
+        catch( Error e ) {
+            creation.fail(e);
+            throw e;
+        }
+        finally {
+            creations.remove(creationId, creation);
+        }
+    }
+
+    private @Nullable String findName(@Nonnull String resource, @Nonnull String key, boolean create) throws CloudException, InternalException {
+        String name = getLookup(resource, LOOKUP_STALENESS).getName(key);
+
+        // a miss that won't be followed by a create must not rely on a lookup that could predate the object
+        if( name == null && !create ) {
+            name = getLookup(resource, 0L).getName(key);
+        }
+        return name;
+    }
+
+    /**
+     * Provides the application or IP list lookup shared by every caller in this session. It is loaded from a single
+     * listing of the container and afterwards updated as this session creates objects.
+     * @param resource {@link #SECURITY_APPLICATION} or {@link #SECURITY_IP_LIST}
+     * @param maxStaleness the oldest listing acceptable, in milliseconds
+     * @return the lookup
+     * @throws CloudException an error occurred listing the container
+     * @throws InternalException an error occurred processing the listing
+     */
+    private @Nonnull SecurityLookup getLookup(@Nonnull final String resource, @Nonnegative long maxStaleness) throws CloudException, InternalException {
+        SecurityLookup lookup = provider.getInventoryCache().get(SecurityLookup.class, getCacheId(resource), maxStaleness, new InventoryCache.Loader<SecurityLookup>() {
+            @Override
+            public @Nonnull SecurityLookup load() throws CloudException, InternalException {
+                NimbulaMethod method = new NimbulaMethod(provider, resource);
+                long listedAt = System.currentTimeMillis();
+
+                method.list();
+                try {
+                    JSONArray array = method.getResponseBody().getJSONArray("result");
+
+                    if( resource.equals(SECURITY_APPLICATION) ) {
+                        return SecurityLookup.forApplications(array, listedAt);
                     }
-                    String entry = entries.getString(0);
-                        
-                    if( entry.equals(forCidr) ) {
-                        ipListId = ob.getString("name");
+                    return SecurityLookup.forIpLists(array, listedAt);
+                }
+                catch( JSONException e ) {
+                    if( logger.isDebugEnabled() ) {
+                        logger.error("Error parsing JSON: " + e.getMessage());
+                        e.printStackTrace();
                     }
+                    throw new InternalException(e);
                 }
             }
-            if( ipListId == null && create ) {
-                ipListId = createList(forCidr);
-            }
-            return ipListId;
+        });
+
+        //noinspection ConstantConditions
+        return lookup;
+    }
+
+    private @Nonnull String getCacheId(@Nonnull String resource) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was specified with this request");
         }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
+        return (ctx.getAccountNumber() + ":" + resource);
+    }
+
+    private void invalidateLookups() throws CloudException {
+        provider.getInventoryCache().remove(SecurityLookup.class, getCacheId(SECURITY_APPLICATION));
+        provider.getInventoryCache().remove(SecurityLookup.class, getCacheId(SECURITY_IP_LIST));
+    }
+
+    // a create that conflicts means another client created the object after the lookup was loaded
+    private @Nonnull String resolveConflict(@Nonnull String resource, @Nonnull String key, @Nonnull CloudException e) throws CloudException, InternalException {
+        String message = e.getMessage();
+
+        if( message == null || !message.startsWith("409") ) {
+            throw e;
+        }
+        String name = getLookup(resource, 0L).getName(key);
+
+        if( name == null ) {
+            throw e;
         }
+        return name;
     }
     
     @Override
@@ -219,12 +354,46 @@ public class SecurityList implements FirewallSupport {
         if( !destinationEndpoint.getRuleTargetType().equals(RuleTargetType.GLOBAL) || !destinationEndpoint.getProviderFirewallId().equals(firewallId) ) {
             throw new OperationNotSupportedException("Not yet supported");
         }
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
-        String ipListId = getIpListId(sourceEndpoint.getCidr(), true);
+        return postRule(firewallId, sourceEndpoint.getCidr(), protocol, permission, beginPort, endPort);
+    }
+
+    /**
+     * Posts a rule, creating the security application and IP list it needs if they do not exist. The names of
+     * those objects come from the session's lookups, which may still hold an object another client or session
+     * has since deleted; if the post fails, the lookups are reloaded, the names resolved again (recreating
+     * anything missing) and the post retried once.
+     */
+    private @Nonnull String postRule(@Nonnull String firewallId, @Nonnull String cidr, @Nonnull Protocol protocol, @Nonnull Permission permission, int beginPort, int endPort) throws CloudException, InternalException {
+        String ipListId = getIpListId(cidr, true);
         String appId = getApplicationId(protocol, beginPort, endPort, true);
+        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
+        String ruleId = (provider.getNamePrefix() + "/dsn_" + protocol.name() + "_" + nextRuleStamp() + "_" + beginPort + "_" + endPort);
+
+        try {
+            method.post(toRuleState(ruleId, firewallId, ipListId, appId, permission));
+        }
+        catch( CloudException e ) {
+            logger.warn("Posting " + ruleId + " failed, retrying with freshly resolved names: " + e.getMessage());
+            invalidateLookups();
+            ipListId = getIpListId(cidr, true);
+            appId = getApplicationId(protocol, beginPort, endPort, true);
+            method = new NimbulaMethod(provider, SECURITY_RULES);
+            method.post(toRuleState(ruleId, firewallId, ipListId, appId, permission));
+        }
+        RuleIndex index = provider.getInventoryCache().get(RuleIndex.class, getCacheId(SECURITY_RULES), RULE_STALENESS);
 
-        String ruleId = (provider.getNamePrefix() + "/dsn_" + protocol.name() + "_" + System.currentTimeMillis() + "_" + beginPort + "_" + endPort);
+        if( index != null ) {
+            try {
+                index.add(method.getResponseBody());
+            }
+            catch( JSONException e ) {
+                provider.getInventoryCache().remove(RuleIndex.class, getCacheId(SECURITY_RULES));
+            }
+        }
+        return ruleId;
+    }
 
+    private @Nonnull HashMap<String,Object> toRuleState(@Nonnull String ruleId, @Nonnull String firewallId, @Nonnull String ipListId, @Nonnull String appId, @Nonnull Permission permission) {
         HashMap<String,Object> state = new HashMap<String,Object>();
 
         state.put("dst_list", "seclist:" + firewallId);
@@ -238,10 +407,296 @@ public class SecurityList implements FirewallSupport {
             state.put("action", "DENY");
         }
         state.put("name", ruleId);
+        return state;
+    }
 
-        method.post(state);
+    // rule names embed a timestamp, so rules posted in parallel must not share one
+    static private long nextRuleStamp() {
+        while( true ) {
+            long last = lastRuleStamp.get();
+            long next = Math.max(System.currentTimeMillis(), last + 1L);
 
-        return ruleId;
+            if( lastRuleStamp.compareAndSet(last, next) ) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Computes the changes needed for a security list to hold exactly the specified rules, without making any of
+     * them. Rules are compared against the session's rule index by source IP list, protocol and port range, and
+     * action. Applications are matched by the protocol and ports they stand for rather than by name, so an existing
+     * rule through a public application such as <code>/oracle/public/ssh</code> satisfies a desired rule for the same
+     * port and no account application is created for it. Rules whose source is not a security IP list, such as
+     * rules from another security list, cannot be expressed as a desired rule and are left alone.
+     * @param firewallId the security list
+     * @param desired the rules the security list should have; only ingress rules from a CIDR to the security list
+     * itself are supported
+     * @return the plan
+     * @throws OperationNotSupportedException a desired rule has a direction, source or destination Nimbula can't express
+     * @throws InternalException an error occurred processing the current state
+     * @throws CloudException an error occurred reading the current state
+     */
+    public @Nonnull FirewallPlan plan(@Nonnull String firewallId, @Nonnull Collection<FirewallRule> desired) throws InternalException, CloudException {
+        return plan(firewallId, desired, getRuleIndex(RULE_STALENESS));
+    }
+
+    private @Nonnull FirewallPlan plan(@Nonnull String firewallId, @Nonnull Collection<FirewallRule> desired, @Nonnull RuleIndex index) throws InternalException, CloudException {
+        SecurityLookup applications = getLookup(SECURITY_APPLICATION, LOOKUP_STALENESS);
+        SecurityLookup ipLists = getLookup(SECURITY_IP_LIST, LOOKUP_STALENESS);
+
+        return plan(firewallId, desired, index.getRules("seclist:" + firewallId), applications, ipLists, new ApplicationReader() {
+            @Override
+            public @Nullable JSONObject read(@Nonnull String name) throws CloudException, InternalException {
+                return getSecurityObject(SECURITY_APPLICATION, name);
+            }
+        });
+    }
+
+    /**
+     * Computes a plan from the current rules of a security list; see {@link #plan(String, Collection)}.
+     * @param firewallId the security list
+     * @param desired the rules the security list should have
+     * @param rules the raw rules currently targeting the security list
+     * @param applications the application lookup, which learns any application read through <code>reader</code>
+     * @param ipLists the IP list lookup
+     * @param reader reads applications the lookup does not know
+     * @return the plan
+     * @throws OperationNotSupportedException a desired rule has a direction, source or destination Nimbula can't express
+     * @throws InternalException an error occurred processing the current state
+     * @throws CloudException an error occurred reading an application
+     */
+    static @Nonnull FirewallPlan plan(@Nonnull String firewallId, @Nonnull Collection<FirewallRule> desired, @Nonnull List<JSONObject> rules, @Nonnull SecurityLookup applications, @Nonnull SecurityLookup ipLists, @Nonnull ApplicationReader reader) throws InternalException, CloudException {
+        LinkedHashMap<String,List<String>> current = new LinkedHashMap<String,List<String>>();
+        FirewallPlan plan = new FirewallPlan(firewallId);
+        HashSet<String> kept = new HashSet<String>();
+
+        try {
+            for( JSONObject ob : rules ) {
+                if( !ob.has("src_list") || !ob.has("application") || !ob.has("action") || ob.isNull("action") ) {
+                    continue;
+                }
+                String source = ob.getString("src_list");
+
+                if( !source.startsWith("seciplist:") ) {
+                    continue;
+                }
+                String key = (source + " " + toApplicationKey(applications, ob.getString("application"), reader) + " " + ob.getString("action").toLowerCase());
+                List<String> names = current.get(key);
+
+                if( names == null ) {
+                    names = new ArrayList<String>();
+                    current.put(key, names);
+                }
+                names.add(ob.getString("name"));
+            }
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+        for( FirewallRule rule : desired ) {
+            RuleTarget source = rule.getSourceEndpoint();
+            RuleTarget destination = rule.getDestinationEndpoint();
+
+            if( !Direction.INGRESS.equals(rule.getDirection()) || !source.getRuleTargetType().equals(RuleTargetType.CIDR) ) {
+                throw new OperationNotSupportedException("Not yet supported");
+            }
+            //noinspection ConstantConditions
+            if( !destination.getRuleTargetType().equals(RuleTargetType.GLOBAL) || !destination.getProviderFirewallId().equals(firewallId) ) {
+                throw new OperationNotSupportedException("Not yet supported");
+            }
+            String cidr = source.getCidr();
+            String applicationKey = SecurityLookup.toApplicationKey(rule.getProtocol().name().toLowerCase(), toDport(rule.getStartPort(), rule.getEndPort()));
+            String action = (Permission.ALLOW.equals(rule.getPermission()) ? "permit" : "deny");
+            String appId = applications.getName(applicationKey);
+            String ipListId = ipLists.getName(cidr);
+
+            if( ipListId != null ) {
+                String key = ("seciplist:" + ipListId + " " + applicationKey + " " + action);
+
+                if( current.containsKey(key) ) {
+                    if( kept.add(key) ) {
+                        plan.addUnchanged();
+                    }
+                    continue;
+                }
+            }
+            if( appId == null ) {
+                plan.addApplication(applicationKey);
+            }
+            if( ipListId == null ) {
+                plan.addIpList(cidr);
+            }
+            plan.addAuthorization(applicationKey + " " + cidr + " " + action, rule);
+        }
+        for( Map.Entry<String,List<String>> entry : current.entrySet() ) {
+            List<String> names = entry.getValue();
+
+            // duplicates of a rule that stays are revoked along with rules that are no longer wanted
+            for( int i=(kept.contains(entry.getKey()) ? 1 : 0); i<names.size(); i++ ) {
+                plan.addRevocation(names.get(i));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Converges a security list on the specified rules. The current rules are listed once and diffed against the
+     * desired rules; any security applications and IP lists the missing rules need are created, and the rule
+     * creations and deletions are then applied with at most <code>parallelism</code> requests in flight. The method
+     * returns once the changes are queued; wait on the plan's {@link FirewallPlan#getProgress() progress} for them to
+     * finish.
+     * @param firewallId the security list
+     * @param desired the rules the security list should have; see {@link #plan(String, Collection)}
+     * @param parallelism the maximum number of concurrent requests
+     * @return the applied plan with its progress
+     * @throws OperationNotSupportedException a desired rule has a direction, source or destination Nimbula can't express
+     * @throws InternalException an error occurred processing the current state
+     * @throws CloudException an error occurred reading the current state
+     */
+    public @Nonnull FirewallPlan reconcile(@Nonnull final String firewallId, @Nonnull Collection<FirewallRule> desired, int parallelism) throws InternalException, CloudException {
+        final FirewallPlan plan = plan(firewallId, desired, getRuleIndex(0L));
+        ArrayList<String> operations = new ArrayList<String>();
+
+        operations.addAll(plan.getRulesToAuthorize().keySet());
+        operations.addAll(plan.getRulesToRevoke());
+
+        final BulkProgress<String> progress = new BulkProgress<String>(operations);
+        final ThrottledExecutor executor = new ThrottledExecutor(provider.getExecutor(), parallelism);
+
+        plan.setProgress(progress);
+        for( final String ruleId : plan.getRulesToRevoke() ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        revoke(ruleId);
+                        progress.succeeded(ruleId, ruleId);
+                    }
+                    catch( Throwable t ) {
+                        logger.error("Failed to revoke " + ruleId + " from " + firewallId + ": " + t.getMessage());
+                        progress.failed(ruleId, t);
+                    }
+                }
+            });
+        }
+        // the rules are posted only once everything they reference exists, so no two posts race to create it
+        final Runnable authorizations = new Runnable() {
+            @Override
+            public void run() {
+                for( final Map.Entry<String,FirewallRule> entry : plan.getRulesToAuthorize().entrySet() ) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            FirewallRule rule = entry.getValue();
+
+                            try {
+                                //noinspection ConstantConditions
+                                progress.succeeded(entry.getKey(), postRule(firewallId, rule.getSourceEndpoint().getCidr(), rule.getProtocol(), rule.getPermission(), rule.getStartPort(), rule.getEndPort()));
+                            }
+                            catch( Throwable t ) {
+                                logger.error("Failed to authorize " + entry.getKey() + " on " + firewallId + ": " + t.getMessage());
+                                progress.failed(entry.getKey(), t);
+                            }
+                        }
+                    });
+                }
+            }
+        };
+        ArrayList<Runnable> prerequisites = new ArrayList<Runnable>();
+
+        for( final String applicationKey : plan.getApplicationsToCreate() ) {
+            final FirewallRule rule = findRule(plan, applicationKey);
+
+            prerequisites.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getApplicationId(rule.getProtocol(), rule.getStartPort(), rule.getEndPort(), true);
+                    }
+                    catch( Throwable t ) {
+                        // the rules that need it will retry and record the failure
+                        logger.warn("Failed to create application " + applicationKey + ": " + t.getMessage());
+                    }
+                }
+            });
+        }
+        for( final String cidr : plan.getIpListsToCreate() ) {
+            prerequisites.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getIpListId(cidr, true);
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Failed to create IP list for " + cidr + ": " + t.getMessage());
+                    }
+                }
+            });
+        }
+        if( prerequisites.isEmpty() ) {
+            authorizations.run();
+            return plan;
+        }
+        final AtomicInteger remaining = new AtomicInteger(prerequisites.size());
+
+        for( final Runnable prerequisite : prerequisites ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prerequisite.run();
+                    }
+                    finally {
+                        if( remaining.decrementAndGet() == 0 ) {
+                            authorizations.run();
+                        }
+                    }
+                }
+            });
+        }
+        return plan;
+    }
+
+    private @Nonnull FirewallRule findRule(@Nonnull FirewallPlan plan, @Nonnull String applicationKey) {
+        for( Map.Entry<String,FirewallRule> entry : plan.getRulesToAuthorize().entrySet() ) {
+            if( entry.getKey().startsWith(applicationKey + " ") ) {
+                return entry.getValue();
+            }
+        }
+        throw new IllegalStateException("No planned rule needs " + applicationKey);
+    }
+
+    /**
+     * @param prefix the account's name prefix
+     * @param protocol the lower-case protocol name
+     * @param dport the destination port or port range
+     * @return the name this provider gives the security application for that protocol and port range
+     */
+    static @Nonnull String toApplicationName(@Nonnull String prefix, @Nonnull String protocol, @Nonnull String dport) {
+        return (prefix + "/dsn_" + protocol + dport.replaceAll("-", "_"));
+    }
+
+    /**
+     * @param prefix the account's name prefix
+     * @param cidr the CIDR
+     * @return the name this provider gives the single-entry security IP list for that CIDR
+     */
+    static @Nonnull String toIpListName(@Nonnull String prefix, @Nonnull String cidr) {
+        return (prefix + "/dsn" + cidr.replaceAll("\\.", "_").replaceAll("/", "_"));
+    }
+
+    static private @Nonnull String toDport(int startPort, int endPort) {
+        String dport = String.valueOf(startPort);
+
+        if( endPort > startPort ) {
+            dport = dport + "-" + endPort;
+        }
+        return dport;
     }
 
     private String toSecurityListName(String rawName) throws CloudException, InternalException {
@@ -275,6 +730,205 @@ public class SecurityList implements FirewallSupport {
         throw new CloudException("Invalid name: " + rawName);
     }
     
+    /**
+     * Finds the <code>dsn_</code> security applications and IP lists this provider created that no security rule
+     * references any more, and unless this is a dry run deletes them with at most <code>parallelism</code> deletions
+     * in flight. Rules, applications and IP lists are listed afresh, in parallel. An object is only an orphan once
+     * it has been seen unreferenced by two collections at least ten minutes apart, since any client may have just
+     * created it and not yet posted the rule that uses it; the first collection to see it only records the sighting.
+     * See {@link OrphanCollector} for running this on a schedule.
+     * @param dryRun true to only report the orphans
+     * @param parallelism the maximum number of concurrent deletions
+     * @return the orphans found, with the progress of deleting them unless this is a dry run
+     * @throws CloudException an error occurred listing the security objects
+     * @throws InternalException an error occurred processing the listings
+     */
+    public @Nonnull OrphanReport collectOrphans(boolean dryRun, int parallelism) throws CloudException, InternalException {
+        SettableFuture<Map<String,JSONObject>> applicationListing = prefetch(SECURITY_APPLICATION);
+        SettableFuture<Map<String,JSONObject>> ipListing = prefetch(SECURITY_IP_LIST);
+        Map<String,JSONObject> rules = listByName(SECURITY_RULES);
+        Map<String,JSONObject> applications = applicationListing.await(PREFETCH_TIMEOUT);
+        Map<String,JSONObject> ipLists = ipListing.await(PREFETCH_TIMEOUT);
+        HashSet<String> referenced = new HashSet<String>();
+
+        try {
+            for( JSONObject rule : rules.values() ) {
+                if( rule.has("application") && !rule.isNull("application") ) {
+                    referenced.add(rule.getString("application"));
+                }
+                for( String field : new String[] { "src_list", "dst_list" } ) {
+                    if( rule.has(field) && !rule.isNull(field) ) {
+                        String list = rule.getString(field);
+
+                        if( list.startsWith("seciplist:") ) {
+                            referenced.add(list.substring("seciplist:".length()));
+                        }
+                    }
+                }
+            }
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+        String account = getCacheId("");
+
+        // sightings of objects that no longer exist are of no further use
+        for( String id : unreferenced.keySet() ) {
+            if( id.startsWith(account) ) {
+                String name = id.substring(account.length());
+
+                if( !applications.containsKey(name) && !ipLists.containsKey(name) ) {
+                    unreferenced.remove(id);
+                }
+            }
+        }
+        String prefix = provider.getNamePrefix();
+        long now = System.currentTimeMillis();
+        OrphanReport report;
+
+        try {
+            report = new OrphanReport(findOrphans(applications, true, prefix, referenced, unreferenced, account, now), findOrphans(ipLists, false, prefix, referenced, unreferenced, account, now));
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
+        }
+
+        if( dryRun || report.isEmpty() ) {
+            return report;
+        }
+        ArrayList<String> names = new ArrayList<String>();
+
+        names.addAll(report.getApplications());
+        names.addAll(report.getIpLists());
+
+        final BulkProgress<String> progress = new BulkProgress<String>(names);
+        ThrottledExecutor executor = new ThrottledExecutor(provider.getExecutor(), parallelism);
+
+        report.setProgress(progress);
+        for( String name : report.getApplications() ) {
+            executor.execute(deleteOrphan(SECURITY_APPLICATION, name, progress));
+        }
+        for( String name : report.getIpLists() ) {
+            executor.execute(deleteOrphan(SECURITY_IP_LIST, name, progress));
+        }
+        return report;
+    }
+
+    private @Nonnull Runnable deleteOrphan(@Nonnull final String resource, @Nonnull final String name, @Nonnull final BulkProgress<String> progress) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    NimbulaMethod method = new NimbulaMethod(provider, resource);
+
+                    method.delete(name);
+                    // the lookups may map a port range or CIDR to the deleted object
+                    invalidateLookups();
+                    progress.succeeded(name, name);
+                }
+                catch( Throwable t ) {
+                    logger.error("Failed to delete orphaned " + resource + " " + name + ": " + t.getMessage());
+                    progress.failed(name, t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Picks the orphans out of a listing of security applications or IP lists. Only objects exactly as
+     * {@link #createApplication(Protocol, String)} or {@link #createList(String)} would have made them are
+     * candidates: the name must have the generated shape and agree with the object's protocol and ports or its
+     * single CIDR, so objects users named <code>dsn...</code> themselves are never touched. A candidate no rule
+     * references is recorded in <code>sightings</code> the first time it is seen and becomes an orphan once it has
+     * gone unreferenced for {@link #ORPHAN_GRACE}; a candidate seen referenced loses its sighting.
+     * @param objects the listing, keyed by name
+     * @param applications true if the listing is of security applications, false for security IP lists
+     * @param prefix the account's name prefix
+     * @param referenced the names of every application and IP list some rule references
+     * @param sightings when each candidate was first seen unreferenced, keyed by <code>account</code> and name
+     * @param account the key prefix for this account's sightings
+     * @param now the time of this collection
+     * @return the names of the orphans
+     * @throws JSONException an object in the listing is malformed
+     */
+    static @Nonnull List<String> findOrphans(@Nonnull Map<String,JSONObject> objects, boolean applications, @Nonnull String prefix, @Nonnull Set<String> referenced, @Nonnull ConcurrentMap<String,Long> sightings, @Nonnull String account, @Nonnegative long now) throws JSONException {
+        ArrayList<String> orphans = new ArrayList<String>();
+
+        for( Map.Entry<String,JSONObject> entry : objects.entrySet() ) {
+            String name = entry.getKey();
+            JSONObject ob = entry.getValue();
+
+            if( ob == null || !(applications ? isGeneratedApplication(prefix, name, ob) : isGeneratedIpList(prefix, name, ob)) ) {
+                continue;
+            }
+            String id = account + name;
+
+            if( referenced.contains(name) ) {
+                sightings.remove(id);
+                continue;
+            }
+            Long since = sightings.putIfAbsent(id, now);
+
+            if( since != null && (now - since) >= ORPHAN_GRACE ) {
+                orphans.add(name);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * @param prefix the account's name prefix
+     * @param name the name of a security application
+     * @param ob the security application
+     * @return true if this provider would have created the application under exactly that name
+     * @throws JSONException the application is malformed
+     */
+    static boolean isGeneratedApplication(@Nonnull String prefix, @Nonnull String name, @Nonnull JSONObject ob) throws JSONException {
+        if( !ob.has("protocol") || ob.isNull("protocol") || !ob.has("dport") || ob.isNull("dport") ) {
+            return false;
+        }
+        String protocol = ob.getString("protocol");
+        String dport = ob.getString("dport");
+        boolean known = false;
+
+        for( Protocol p : Protocol.values() ) {
+            if( p.name().toLowerCase().equals(protocol) ) {
+                known = true;
+                break;
+            }
+        }
+        return (known && dport.matches("[0-9]+(-[0-9]+)?") && name.equals(toApplicationName(prefix, protocol, dport)));
+    }
+
+    /**
+     * @param prefix the account's name prefix
+     * @param name the name of a security IP list
+     * @param ob the security IP list
+     * @return true if this provider would have created the IP list under exactly that name
+     * @throws JSONException the IP list is malformed
+     */
+    static boolean isGeneratedIpList(@Nonnull String prefix, @Nonnull String name, @Nonnull JSONObject ob) throws JSONException {
+        if( !ob.has("secipentries") || ob.isNull("secipentries") ) {
+            return false;
+        }
+        JSONArray entries = ob.getJSONArray("secipentries");
+
+        if( entries.length() != 1 || entries.isNull(0) ) {
+            return false;
+        }
+        String cidr = entries.getString(0);
+
+        return (cidr.matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}/[0-9]{1,2}") && name.equals(toIpListName(prefix, cidr)));
+    }
+
     @Override
     public @Nonnull String create(@Nonnull String name, @Nonnull String description) throws InternalException, CloudException {
         NimbulaMethod method = new NimbulaMethod(provider, SECURITY_LIST);
@@ -303,6 +957,8 @@ public class SecurityList implements FirewallSupport {
             throw new CloudException(e);
         }
         //noinspection ConstantConditions
+        provider.getInventoryCache().put(Firewall.class, firewall.getProviderFirewallId(), firewall);
+        //noinspection ConstantConditions
         return firewall.getProviderFirewallId();
     }
 
@@ -316,18 +972,43 @@ public class SecurityList implements FirewallSupport {
         NimbulaMethod method = new NimbulaMethod(provider, SECURITY_LIST);
         
         method.delete(firewallId);
+        provider.getInventoryCache().remove(Firewall.class, firewallId);
     }
 
     @Override
     public @Nullable Firewall getFirewall(@Nonnull String firewallId) throws InternalException, CloudException {
+        return getFirewall(firewallId, 0L);
+    }
+
+    /**
+     * Fetches a security list, accepting a copy from the provider's inventory cache if it is no older than the
+     * specified staleness.
+     * @param firewallId the security list to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the security list, or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nullable Firewall getFirewall(@Nonnull String firewallId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
+        InventoryCache cache = provider.getInventoryCache();
+        Firewall firewall = cache.get(Firewall.class, firewallId, maxStaleness);
+
+        if( firewall != null ) {
+            return firewall;
+        }
         NimbulaMethod method = new NimbulaMethod(provider, SECURITY_LIST);
         int code = method.get(firewallId);
             
         if( code == 404 || code == 401 ) {
+            cache.remove(Firewall.class, firewallId);
             return null;
         }
         try {
-            return toFirewall(method.getResponseBody());
+            firewall = toFirewall(method.getResponseBody());
+            if( firewall != null ) {
+                cache.put(Firewall.class, firewallId, firewall);
+            }
+            return firewall;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -345,30 +1026,106 @@ public class SecurityList implements FirewallSupport {
 
     @Override
     public @Nonnull Collection<FirewallRule> getRules(@Nonnull String firewallId) throws InternalException, CloudException {
-        // this needs refactoring
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
-        
-        method.list();
+        return getRules(firewallId, 0L);
+    }
+
+    /**
+     * Reads the rules of a security list, accepting the session's rule index if its listing is no older than the
+     * specified staleness.
+     * @param firewallId the security list of interest
+     * @param maxStaleness the maximum acceptable age in milliseconds of the rule listing; zero always goes to the cloud
+     * @return the rules of the security list
+     * @throws InternalException an error occurred processing the listings
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull Collection<FirewallRule> getRules(@Nonnull String firewallId, @Nonnegative long maxStaleness) throws InternalException, CloudException {
+        // the applications and IP lists are read alongside the rules and joined in memory
+        SettableFuture<Map<String,JSONObject>> applicationListing = prefetch(SECURITY_APPLICATION);
+        SettableFuture<Map<String,JSONObject>> ipListing = prefetch(SECURITY_IP_LIST);
+        List<JSONObject> raw = getRuleIndex(maxStaleness).getRules("seclist:" + firewallId);
 
+        return toRules(firewallId, raw, applicationListing.await(PREFETCH_TIMEOUT), ipListing.await(PREFETCH_TIMEOUT));
+    }
+
+    /**
+     * Reads the rules of every firewall in the account in one pass: a single rule listing, application listing and
+     * IP list listing serve all of them. The rule listing is always fresh.
+     * @return the rules of each firewall that has any, keyed by firewall ID
+     * @throws InternalException an error occurred processing the listings
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull Map<String,Collection<FirewallRule>> getRulesForAllFirewalls() throws InternalException, CloudException {
+        return getRulesForAllFirewalls(0L);
+    }
+
+    /**
+     * Reads the rules of every firewall in the account in one pass, accepting the session's rule index if its
+     * listing is no older than the specified staleness.
+     * @param maxStaleness the maximum acceptable age in milliseconds of the rule listing; zero always goes to the cloud
+     * @return the rules of each firewall that has any, keyed by firewall ID
+     * @throws InternalException an error occurred processing the listings
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull Map<String,Collection<FirewallRule>> getRulesForAllFirewalls(@Nonnegative long maxStaleness) throws InternalException, CloudException {
+        SettableFuture<Map<String,JSONObject>> applicationListing = prefetch(SECURITY_APPLICATION);
+        SettableFuture<Map<String,JSONObject>> ipListing = prefetch(SECURITY_IP_LIST);
+        RuleIndex index = getRuleIndex(maxStaleness);
+        Map<String,JSONObject> applications = applicationListing.await(PREFETCH_TIMEOUT);
+        Map<String,JSONObject> ipLists = ipListing.await(PREFETCH_TIMEOUT);
+        LinkedHashMap<String,Collection<FirewallRule>> rules = new LinkedHashMap<String,Collection<FirewallRule>>();
+
+        for( String destination : index.getDestinations() ) {
+            if( destination.startsWith("seclist:") ) {
+                String firewallId = destination.substring("seclist:".length());
+
+                rules.put(firewallId, toRules(firewallId, index.getRules(destination), applications, ipLists));
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Provides the rule index shared by every caller in this session. It is loaded from a single listing of the
+     * account's rules and afterwards updated as this session authorizes and revokes rules.
+     * @param maxStaleness the oldest listing acceptable, in milliseconds
+     * @return the rule index
+     * @throws CloudException an error occurred listing the rules
+     * @throws InternalException an error occurred processing the listing
+     */
+    private @Nonnull RuleIndex getRuleIndex(@Nonnegative long maxStaleness) throws CloudException, InternalException {
+        RuleIndex index = provider.getInventoryCache().get(RuleIndex.class, getCacheId(SECURITY_RULES), maxStaleness, new InventoryCache.Loader<RuleIndex>() {
+            @Override
+            public @Nonnull RuleIndex load() throws CloudException, InternalException {
+                NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
+                long listedAt = System.currentTimeMillis();
+
+                method.list();
+                try {
+                    return RuleIndex.fromJSON(method.getResponseBody().getJSONArray("result"), listedAt);
+                }
+                catch( JSONException e ) {
+                    if( logger.isDebugEnabled() ) {
+                        logger.error("Error parsing JSON: " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                    throw new InternalException(e);
+                }
+            }
+        });
+
+        //noinspection ConstantConditions
+        return index;
+    }
+
+    private @Nonnull Collection<FirewallRule> toRules(@Nonnull String firewallId, @Nonnull List<JSONObject> raw, @Nonnull Map<String,JSONObject> applications, @Nonnull Map<String,JSONObject> ipLists) throws InternalException, CloudException {
         try {
             ArrayList<FirewallRule> rules = new ArrayList<FirewallRule>();
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-            String id = "seclist:" + firewallId;
-            
-            for( int i=0; i<array.length(); i++ ) {
-                JSONObject ob = array.getJSONObject(i);
 
-                if( ob != null ) {
-                    if( ob.has("dst_is_ip") && ob.getBoolean("dst_is_ip") ) {
-                        continue;
-                    }
-                    if( ob.has("dst_list") && ob.getString("dst_list").equals(id) ) {
-                        Collection<FirewallRule> r = toRule(firewallId, ob);
-                        
-                        if( r != null ) {
-                            rules.addAll(r);
-                        }
-                    }
+            for( JSONObject ob : raw ) {
+                Collection<FirewallRule> r = toRule(firewallId, ob, applications, ipLists);
+
+                if( r != null ) {
+                    rules.addAll(r);
                 }
             }
             return rules;
@@ -379,7 +1136,7 @@ public class SecurityList implements FirewallSupport {
                 e.printStackTrace();
             }
             throw new InternalException(e);
-        } 
+        }
     }
 
     @Override
@@ -390,20 +1147,22 @@ public class SecurityList implements FirewallSupport {
     @Override
     public @Nonnull Collection<Firewall> list() throws InternalException, CloudException {
         NimbulaMethod method = new NimbulaMethod(provider, SECURITY_LIST);
-        
+        long listedAt = System.currentTimeMillis();
+
         method.list();
         try {
-            ArrayList<Firewall> firewalls = new ArrayList<Firewall>();
+            LinkedHashMap<String,Firewall> firewalls = new LinkedHashMap<String,Firewall>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
             
             for( int i=0; i<array.length(); i++ ) {
                 Firewall firewall = toFirewall(array.getJSONObject(i));
                 
                 if( firewall != null ) {
-                    firewalls.add(firewall);
+                    firewalls.put(firewall.getProviderFirewallId(), firewall);
                 }
             }
-            return firewalls;
+            provider.getInventoryCache().replaceAll(Firewall.class, firewalls, listedAt);
+            return new ArrayList<Firewall>(firewalls.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -414,15 +1173,66 @@ public class SecurityList implements FirewallSupport {
         } 
     }
 
+    /**
+     * Lists the names of every security list in the account using the directory form of the API. Each handle
+     * fetches the full security list, together with the rest of its batch, only when accessed.
+     * @param batchSize the number of handles whose details are fetched together
+     * @return lazy handles on the security lists in the account
+     * @throws InternalException an error occurred processing a directory listing
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nonnull List<LazyResource<Firewall>> listHandles(@Nonnegative int batchSize) throws InternalException, CloudException {
+        return new LazyListing<Firewall>(provider, SECURITY_LIST, batchSize) {
+            @Override
+            protected @Nullable Firewall fetch(@Nonnull String providerId) throws CloudException, InternalException {
+                return getFirewall(providerId);
+            }
+        }.list();
+    }
+
+    /**
+     * Lists every security list in the account by discovering the user containers and fetching them concurrently.
+     * Results stream back as each user's container is read.
+     * @param parallelism the maximum number of user containers fetched at once
+     * @return the security lists in the account
+     * @throws InternalException an error occurred processing the discovery response
+     * @throws CloudException discovery failed
+     */
+    public @Nonnull Iterable<Firewall> listByUser(@Nonnegative int parallelism) throws InternalException, CloudException {
+        return new ContainerFanOut<Firewall>(provider, SECURITY_LIST, Firewall.class, parallelism) {
+            @Override
+            protected @Nullable Firewall toResource(@Nonnull JSONObject ob) throws JSONException, CloudException {
+                return toFirewall(ob);
+            }
+
+            @Override
+            protected @Nonnull String getId(@Nonnull Firewall firewall) {
+                //noinspection ConstantConditions
+                return firewall.getProviderFirewallId();
+            }
+        }.list();
+    }
+
     @Override
     public @Nonnull Iterable<ResourceStatus> listFirewallStatus() throws InternalException, CloudException {
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_LIST);
 
-        for( Firewall fw : list() ) {
-            //noinspection ConstantConditions
-            status.add(new ResourceStatus(fw.getProviderFirewallId(), true));
+        method.list();
+        try {
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+            for( String id : method.getResultProjection("name", null).keySet() ) {
+                status.add(new ResourceStatus(id, true));
+            }
+            return status;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
         }
-        return status;
     }
 
     @Override
@@ -481,6 +1291,12 @@ public class SecurityList implements FirewallSupport {
         NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
         
         method.delete(ruleId);
+
+        RuleIndex index = provider.getInventoryCache().get(RuleIndex.class, getCacheId(SECURITY_RULES), RULE_STALENESS);
+
+        if( index != null ) {
+            index.remove(ruleId);
+        }
     }
     
     @Override
@@ -500,59 +1316,23 @@ public class SecurityList implements FirewallSupport {
 
     @Override
     public void revoke(@Nonnull String firewallId, @Nonnull Direction direction, @Nonnull Permission permission, @Nonnull String source, @Nonnull Protocol protocol, @Nonnull RuleTarget target, int beginPort, int endPort) throws CloudException, InternalException {
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_RULES);
         String ipListId = getIpListId(source, false);
         String appId = getApplicationId(protocol, beginPort, endPort, false);
 
         if( ipListId == null || appId == null ) {
             return;
         }
-        method.list();
-
-        try {
-            JSONArray array = method.getResponseBody().getJSONArray("result");
-            String id = "seclist:" + firewallId;
-
-            for( int i=0; i<array.length(); i++ ) {
-                JSONObject ob = array.getJSONObject(i);
-
-                if( ob != null ) {
-                    if( ob.has("dst_is_ip") && ob.getBoolean("dst_is_ip") ) {
-                        continue;
-                    }
-                    if( ob.has("action") && !ob.isNull("action") ) {
-                        String action = ob.getString("action");
+        String destinationList = "seclist:" + firewallId;
+        String sourceList = "seciplist:" + ipListId;
+        String action = (permission.equals(Permission.ALLOW) ? "permit" : "deny");
+        Collection<String> matches = getRuleIndex(RULE_STALENESS).find(destinationList, sourceList, appId, action);
 
-                        if( permission.equals(Permission.ALLOW) && !action.equalsIgnoreCase("permit") ) {
-                            continue;
-                        }
-                        else if( permission.equals(Permission.DENY) && !action.equalsIgnoreCase("deny") ) {
-                            continue;
-                        }
-                    }
-                    else {
-                        continue;
-                    }
-                    if( ob.has("dst_list") && ob.getString("dst_list").equals(id) ) {
-                        if( ob.has("src_list") ) {
-                            String listId = ob.getString("src_list");
-
-                            if( listId.equals("seciplist:" + ipListId) ) {
-                                if( ob.has("application") && ob.getString("application").equals(appId) ) {
-                                    revoke(ob.getString("name"));
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        // nothing to revoke may just mean the rule was authorized elsewhere after the index was loaded
+        if( matches.isEmpty() ) {
+            matches = getRuleIndex(0L).find(destinationList, sourceList, appId, action);
         }
-        catch( JSONException e ) {
-            if( logger.isDebugEnabled() ) {
-                logger.error("Error parsing JSON: " + e.getMessage());
-                e.printStackTrace();
-            }
-            throw new InternalException(e);
+        for( String ruleId : matches ) {
+            revoke(ruleId);
         }
     }
 
@@ -609,7 +1389,7 @@ public class SecurityList implements FirewallSupport {
     }
 
     @SuppressWarnings("ConstantConditions")
-    private Collection<FirewallRule> toRule(String firewallId, JSONObject ob) throws JSONException, CloudException, InternalException {
+    private Collection<FirewallRule> toRule(String firewallId, JSONObject ob, Map<String,JSONObject> applications, Map<String,JSONObject> ipLists) throws JSONException, CloudException, InternalException {
         String destList = (ob.has("dst_list") ? ob.getString("dst_list") : null);
         String appId = (ob.has("application") ? ob.getString("application") : null);
 
@@ -634,7 +1414,7 @@ public class SecurityList implements FirewallSupport {
         if( ob.has("action") ) {
             permission = (ob.getString("action").equalsIgnoreCase("permit") ? Permission.ALLOW : Permission.DENY);
         }
-        JSONObject app = getSecurityApplication(appId);
+        JSONObject app = lookup(applications, SECURITY_APPLICATION, appId);
         int startPort, endPort;
         Protocol protocol;
 
@@ -682,7 +1462,7 @@ public class SecurityList implements FirewallSupport {
             if( ipList == null ) {
                 return null;
             }
-            JSONObject l = getSecurityIpList(ipList.substring("seciplist:".length()));
+            JSONObject l = lookup(ipLists, SECURITY_IP_LIST, ipList.substring("seciplist:".length()));
             
             if( l == null ) {
                 return null;
@@ -706,9 +1486,9 @@ public class SecurityList implements FirewallSupport {
         return rules;
     }
     
-    private JSONObject getSecurityApplication(String secIpListId) throws CloudException, InternalException {
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_APPLICATION);
-        int code = method.get(secIpListId);
+    private @Nullable JSONObject getSecurityObject(@Nonnull String resource, @Nonnull String id) throws CloudException, InternalException {
+        NimbulaMethod method = new NimbulaMethod(provider, resource);
+        int code = method.get(id);
             
         if( code == 404 || code == 401 ) {
             return null;
@@ -724,16 +1504,67 @@ public class SecurityList implements FirewallSupport {
             throw new InternalException(e);
         }          
     }
-    
-    private JSONObject getSecurityIpList(String secIpListId) throws CloudException, InternalException {
-        NimbulaMethod method = new NimbulaMethod(provider, SECURITY_IP_LIST);
-        int code = method.get(secIpListId);
-            
-        if( code == 404 || code == 401 ) {
-            return null;
+
+    /**
+     * Resolves an application named by a rule to the protocol and port range it stands for. Applications outside the
+     * account container, such as public ones, are read once and remembered in the lookup.
+     * @param applications the session's application lookup
+     * @param name the application name
+     * @param reader reads the application if the lookup does not know it
+     * @return the application key, or the name itself if the application cannot be resolved
+     * @throws CloudException an error occurred reading the application
+     * @throws InternalException an error occurred processing the application
+     * @throws JSONException the application is malformed
+     */
+    static private @Nonnull String toApplicationKey(@Nonnull SecurityLookup applications, @Nonnull String name, @Nonnull ApplicationReader reader) throws CloudException, InternalException, JSONException {
+        String key = applications.getKey(name);
+
+        if( key != null ) {
+            return key;
+        }
+        JSONObject ob = reader.read(name);
+
+        if( ob == null || !ob.has("protocol") || !ob.has("dport") ) {
+            // remembered as itself so a missing application is not read again; it matches no desired rule
+            key = name;
+        }
+        else {
+            key = SecurityLookup.toApplicationKey(ob.getString("protocol"), ob.getString("dport"));
+        }
+        applications.putKey(name, key);
+        return key;
+    }
+
+    /**
+     * Finds an object in a prefetched listing. Objects outside the account container, such as public applications,
+     * are not in the listing; those are fetched individually and remembered so each is read at most once.
+     */
+    private @Nullable JSONObject lookup(@Nonnull Map<String,JSONObject> listing, @Nonnull String resource, @Nonnull String id) throws CloudException, InternalException {
+        if( listing.containsKey(id) ) {
+            return listing.get(id);
         }
+        JSONObject ob = getSecurityObject(resource, id);
+
+        listing.put(id, ob);
+        return ob;
+    }
+
+    private @Nonnull Map<String,JSONObject> listByName(@Nonnull String resource) throws CloudException, InternalException {
+        NimbulaMethod method = new NimbulaMethod(provider, resource);
+
+        method.list();
         try {
-            return method.getResponseBody();
+            HashMap<String,JSONObject> objects = new HashMap<String,JSONObject>();
+            JSONArray array = method.getResponseBody().getJSONArray("result");
+
+            for( int i=0; i<array.length(); i++ ) {
+                JSONObject ob = array.getJSONObject(i);
+
+                if( ob != null && ob.has("name") ) {
+                    objects.put(ob.getString("name"), ob);
+                }
+            }
+            return objects;
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -741,6 +1572,28 @@ public class SecurityList implements FirewallSupport {
                 e.printStackTrace();
             }
             throw new InternalException(e);
-        }          
+        }
+    }
+
+    private @Nonnull SettableFuture<Map<String,JSONObject>> prefetch(@Nonnull final String resource) {
+        final SettableFuture<Map<String,JSONObject>> listing = new SettableFuture<Map<String,JSONObject>>();
+
+        try {
+            provider.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listing.complete(listByName(resource));
+                    }
+                    catch( Throwable t ) {
+                        listing.fail(t);
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            listing.fail(e);
+        }
+        return listing;
     }
 }
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+package org.dasein.cloud.nimbula.network;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Maps the terms a firewall rule is expressed in onto the names of the Nimbula objects that carry them: a protocol
+ * and port range onto a security application, or a CIDR onto a single-entry security IP list. A lookup is built from
+ * one listing of its container and then kept current as this provider session creates objects, so authorizing or
+ * revoking a rule does not need to scan the container again.
+ * @version 2013.02.1 initial version
+ * @since 2013.02.1
+ */
+public class SecurityLookup {
+    /**
+     * Indexes a listing of security applications by protocol and destination port range. Where several applications
+     * match, the first listed wins; every application can still be resolved back to its key by name.
+     * @param array the listing
+     * @param listedAt when the listing was requested
+     * @return the application lookup
+     * @throws JSONException the listing is malformed
+     */
+    static @Nonnull SecurityLookup forApplications(@Nonnull JSONArray array, @Nonnegative long listedAt) throws JSONException {
+        SecurityLookup lookup = new SecurityLookup(listedAt);
+
+        for( int i=0; i<array.length(); i++ ) {
+            JSONObject ob = array.getJSONObject(i);
+
+            if( ob.has("protocol") && ob.has("dport") && ob.has("name") ) {
+                String key = toApplicationKey(ob.getString("protocol"), ob.getString("dport"));
+
+                lookup.keys.put(ob.getString("name"), key);
+                if( !lookup.names.containsKey(key) ) {
+                    lookup.names.put(key, ob.getString("name"));
+                }
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Indexes a listing of security IP lists by CIDR. Only lists with a single entry are indexed; where several match,
+     * the last listed wins.
+     * @param array the listing
+     * @param listedAt when the listing was requested
+     * @return the IP list lookup
+     * @throws JSONException the listing is malformed
+     */
+    static @Nonnull SecurityLookup forIpLists(@Nonnull JSONArray array, @Nonnegative long listedAt) throws JSONException {
+        SecurityLookup lookup = new SecurityLookup(listedAt);
+
+        for( int i=0; i<array.length(); i++ ) {
+            JSONObject ob = array.getJSONObject(i);
+
+            if( ob.has("secipentries") && ob.has("name") ) {
+                JSONArray entries = ob.getJSONArray("secipentries");
+
+                if( entries.length() == 1 ) {
+                    lookup.names.put(entries.getString(0), ob.getString("name"));
+                }
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * @param protocol the lower-case protocol name
+     * @param dport the destination port or port range, e.g. <code>80</code> or <code>8000-8080</code>
+     * @return the key under which the matching application is indexed
+     */
+    static @Nonnull String toApplicationKey(@Nonnull String protocol, @Nonnull String dport) {
+        return (protocol + ":" + dport);
+    }
+
+    private final ConcurrentHashMap<String,String> keys  = new ConcurrentHashMap<String,String>();
+    private final ConcurrentHashMap<String,String> names = new ConcurrentHashMap<String,String>();
+    private final long                             timestamp;
+
+    private SecurityLookup(long timestamp) { this.timestamp = timestamp; }
+
+    /**
+     * @param name the name of an object
+     * @return the application key or CIDR the object stands for, or <code>null</code> if it is not known
+     */
+    public @Nullable String getKey(@Nonnull String name) {
+        return keys.get(name);
+    }
+
+    /**
+     * @param key an application key or a CIDR
+     * @return the name of the matching object, or <code>null</code> if none is known
+     */
+    public @Nullable String getName(@Nonnull String key) {
+        return names.get(key);
+    }
+
+    /**
+     * @return when the listing behind this lookup was requested
+     */
+    public @Nonnegative long getTimestamp() {
+        return timestamp;
+    }
+
+    void put(@Nonnull String key, @Nonnull String name) {
+        names.put(key, name);
+        keys.put(name, key);
+    }
+
+    /**
+     * Remembers what an object outside the listing, such as a public application, stands for without making it
+     * the object used for that key.
+     * @param name the name of the object
+     * @param key the application key or CIDR it stands for
+     */
+    void putKey(@Nonnull String name, @Nonnull String key) {
+        keys.put(name, key);
+    }
+
+    public @Nonnegative int size() {
+        return names.size();
+    }
+}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 
 import org.apache.log4j.Logger;
@@ -50,12 +51,14 @@ import org.dasein.cloud.network.Subnet;
 import org.dasein.cloud.network.VLANState;
 import org.dasein.cloud.network.VLANSupport;
 import org.dasein.cloud.network.VLAN;
+import org.dasein.cloud.nimbula.InventoryCache;
 import org.dasein.cloud.nimbula.NimbulaDirector;
 import org.dasein.cloud.nimbula.NimbulaMethod;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -243,16 +246,39 @@ public class Vethernet implements VLANSupport {
 
     @Override
     public @Nullable VLAN getVlan(@Nonnull String vlanId) throws CloudException, InternalException {
+        return getVlan(vlanId, 0L);
+    }
+
+    /**
+     * Fetches a virtual ethernet, accepting a copy from the provider's inventory cache if it is no older than the
+     * specified staleness.
+     * @param vlanId the virtual ethernet to fetch
+     * @param maxStaleness the maximum acceptable age in milliseconds of a cached copy; zero always goes to the cloud
+     * @return the virtual ethernet, or <code>null</code> if it does not exist
+     * @throws InternalException an error occurred processing the response
+     * @throws CloudException an error occurred in the cloud
+     */
+    public @Nullable VLAN getVlan(@Nonnull String vlanId, @Nonnegative long maxStaleness) throws CloudException, InternalException {
+        InventoryCache cache = cloud.getInventoryCache();
+        VLAN vlan = cache.get(VLAN.class, vlanId, maxStaleness);
+
+        if( vlan != null ) {
+            return vlan;
+        }
         NimbulaMethod method = new NimbulaMethod(cloud, "vethernet");
         int code = method.get(vlanId);
             
         if( code == 404 || code == 401 ) {
+            cache.remove(VLAN.class, vlanId);
             return null;
         }
         try {
-            VLAN vlan = toVlan(method.getResponseBody());
+            vlan = toVlan(method.getResponseBody());
 
-            setNetwork(vlan);
+            if( vlan != null ) {
+                setNetwork(vlan);
+                cache.put(VLAN.class, vlanId, vlan);
+            }
             return vlan;
         }
         catch( JSONException e ) {
@@ -277,10 +303,11 @@ public class Vethernet implements VLANSupport {
     @Override
     public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
         NimbulaMethod method = new NimbulaMethod(cloud, "vethernet");
-        
+        long listedAt = System.currentTimeMillis();
+
         method.list();
         try {
-            ArrayList<VLAN> vlans = new ArrayList<VLAN>();
+            LinkedHashMap<String,VLAN> vlans = new LinkedHashMap<String,VLAN>();
             JSONArray array = method.getResponseBody().getJSONArray("result");
             
             for( int i=0; i<array.length(); i++ ) {
@@ -288,10 +315,11 @@ public class Vethernet implements VLANSupport {
                 
                 if( vlan != null ) {
                     setNetwork(vlan);
-                    vlans.add(vlan);
+                    vlans.put(vlan.getProviderVlanId(), vlan);
                 }
             }
-            return vlans;
+            cloud.getInventoryCache().replaceAll(VLAN.class, vlans, listedAt);
+            return new ArrayList<VLAN>(vlans.values());
         }
         catch( JSONException e ) {
             if( logger.isDebugEnabled() ) {
@@ -476,6 +504,7 @@ public class Vethernet implements VLANSupport {
         NimbulaMethod method = new NimbulaMethod(cloud, "vethernet");
         
         method.delete(vlanId);
+        cloud.getInventoryCache().remove(VLAN.class, vlanId);
 
         JSONObject ob = findVdhcpd(vlanId);
         
@@ -747,12 +776,24 @@ public class Vethernet implements VLANSupport {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listVlanStatus() throws CloudException, InternalException {
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        NimbulaMethod method = new NimbulaMethod(cloud, "vethernet");
+
+        method.list();
+        try {
+            ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
 
-        for( VLAN vlan : listVlans() ) {
-            status.add(new ResourceStatus(vlan.getProviderVlanId(), vlan.getCurrentState()));
+            for( String id : method.getResultProjection("name", null).keySet() ) {
+                status.add(new ResourceStatus(id, VLANState.AVAILABLE));
+            }
+            return status;
+        }
+        catch( JSONException e ) {
+            if( logger.isDebugEnabled() ) {
+                logger.error("Error parsing JSON: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw new InternalException(e);
         }
-        return status;
     }
 
     @Override
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the raw-text projection of a listing's <code>result</code> array against what a full parse would give.
+ */
+public class ResultProjectionTest {
+    @Test
+    public void projectsKeyAndValueInResponseOrder() throws JSONException {
+        Map<String,String> projection = NimbulaMethod.getResultProjection("{\"result\": [{\"name\": \"/a/b/vm2\", \"state\": \"running\"}, {\"state\": \"queued\", \"name\": \"/a/b/vm1\"}]}", "name", "state");
+
+        assertEquals(2, projection.size());
+        assertEquals("running", projection.get("/a/b/vm2"));
+        assertEquals("queued", projection.get("/a/b/vm1"));
+        assertEquals("/a/b/vm2", projection.keySet().iterator().next());
+    }
+
+    @Test
+    public void skipsNestedObjectsAndArrays() throws JSONException {
+        String response = "{\"meta\": {\"result\": [{\"name\": \"decoy\"}]}, \"result\": [" +
+                "{\"attributes\": {\"nested\": {\"name\": \"inner\", \"list\": [1, [2, {\"x\": \"]}\"}]]}}, \"name\": \"vm1\", \"seclists\": [\"/a/default\", \"/a/web\"], \"state\": \"running\"}" +
+                "], \"trailer\": [true, false]}";
+        Map<String,String> projection = NimbulaMethod.getResultProjection(response, "name", "state");
+
+        assertEquals(1, projection.size());
+        assertEquals("running", projection.get("vm1"));
+    }
+
+    @Test
+    public void readsEscapedStrings() throws JSONException {
+        String response = "{\"result\": [{\"description\": \"quote \\\" brace } bracket ] comma ,\", \"name\": \"vm\\\\1\", \"state\": \"r\\u0075nning\"}]}";
+        Map<String,String> projection = NimbulaMethod.getResultProjection(response, "name", "state");
+
+        assertEquals("running", projection.get("vm\\1"));
+    }
+
+    @Test
+    public void handlesNullAndNonStringValues() throws JSONException {
+        String response = "{\"result\": [{\"name\": \"vm1\", \"state\": null}, {\"name\": null, \"state\": \"running\"}, {\"name\": \"vm2\", \"state\": 42}, {\"name\": \"vm3\", \"state\": {\"code\": 1}}, \"stray\", 7, null]}";
+        Map<String,String> projection = NimbulaMethod.getResultProjection(response, "name", "state");
+
+        assertEquals(3, projection.size());
+        assertTrue(projection.containsKey("vm1"));
+        assertNull(projection.get("vm1"));
+        assertEquals("42", projection.get("vm2"));
+        assertTrue(projection.containsKey("vm3"));
+        assertNull(projection.get("vm3"));
+    }
+
+    @Test
+    public void projectsKeysOnly() throws JSONException {
+        Map<String,String> projection = NimbulaMethod.getResultProjection("{\"result\": [{\"name\": \"vm1\", \"state\": \"running\"}, {\"name\": \"vm2\"}]}", "name", null);
+
+        assertEquals("[vm1, vm2]", new ArrayList<String>(projection.keySet()).toString());
+        assertNull(projection.get("vm1"));
+    }
+
+    @Test
+    public void emptyOrMissingResult() throws JSONException {
+        assertTrue(NimbulaMethod.getResultProjection(null, "name", "state").isEmpty());
+        assertTrue(NimbulaMethod.getResultProjection("{}", "name", "state").isEmpty());
+        assertTrue(NimbulaMethod.getResultProjection("{\"result\": []}", "name", "state").isEmpty());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsUnterminatedResult() throws JSONException {
+        NimbulaMethod.getResultProjection("{\"result\": [{\"name\": \"vm1\", \"attributes\": {\"a\": [1, 2}", "name", "state");
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.network;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dasein.util.CalendarWrapper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the name filter and the two-sighting rule used when collecting orphaned security objects.
+ */
+public class OrphanCollectionTest {
+    static private final String ACCOUNT = "acct:";
+    static private final String PREFIX  = "/acct/user";
+    static private final long   START   = 1000000L;
+
+    static private JSONObject application(String protocol, String dport) throws JSONException {
+        JSONObject ob = new JSONObject();
+
+        ob.put("protocol", protocol);
+        ob.put("dport", dport);
+        return ob;
+    }
+
+    static private JSONObject ipList(String ... entries) throws JSONException {
+        JSONObject ob = new JSONObject();
+
+        ob.put("secipentries", new JSONArray(Arrays.asList(entries)));
+        return ob;
+    }
+
+    @Test
+    public void acceptsGeneratedApplications() throws JSONException {
+        assertTrue(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_tcp80", application("tcp", "80")));
+        assertTrue(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_udp1000_2000", application("udp", "1000-2000")));
+    }
+
+    @Test
+    public void rejectsOtherApplications() throws JSONException {
+        assertFalse(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsnservers", application("tcp", "80")));
+        assertFalse(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_legacy", application("tcp", "80")));
+        assertFalse("name and content disagree", SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_tcp80", application("tcp", "8080")));
+        assertFalse(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_gre80", application("gre", "80")));
+        assertFalse(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_tcpany", application("tcp", "any")));
+        assertFalse(SecurityList.isGeneratedApplication("/other/user", "/acct/user/dsn_tcp80", application("tcp", "80")));
+        assertFalse(SecurityList.isGeneratedApplication(PREFIX, "/acct/user/dsn_tcp80", new JSONObject()));
+    }
+
+    @Test
+    public void acceptsGeneratedIpLists() throws JSONException {
+        assertTrue(SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsn10_0_0_0_8", ipList("10.0.0.0/8")));
+    }
+
+    @Test
+    public void rejectsOtherIpLists() throws JSONException {
+        assertFalse(SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsnservers", ipList("10.0.0.0/8")));
+        assertFalse("name and content disagree", SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsn10_0_0_0_8", ipList("10.0.0.0/16")));
+        assertFalse(SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsn10_0_0_0_8", ipList("10.0.0.0/8", "192.168.0.0/16")));
+        assertFalse(SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsn10_0_0_0_8", ipList()));
+        assertFalse(SecurityList.isGeneratedIpList(PREFIX, "/acct/user/dsnhost", ipList("host")));
+    }
+
+    @Test
+    public void reportsOnlyAfterTwoSightingsAcrossTheGrace() throws JSONException {
+        Map<String,JSONObject> objects = Collections.singletonMap("/acct/user/dsn_tcp80", application("tcp", "80"));
+        ConcurrentMap<String,Long> sightings = new ConcurrentHashMap<String,Long>();
+        HashSet<String> referenced = new HashSet<String>();
+
+        assertTrue(SecurityList.findOrphans(objects, true, PREFIX, referenced, sightings, ACCOUNT, START).isEmpty());
+        assertEquals(Long.valueOf(START), sightings.get(ACCOUNT + "/acct/user/dsn_tcp80"));
+        assertTrue(SecurityList.findOrphans(objects, true, PREFIX, referenced, sightings, ACCOUNT, START + CalendarWrapper.MINUTE * 10L - 1L).isEmpty());
+
+        List<String> orphans = SecurityList.findOrphans(objects, true, PREFIX, referenced, sightings, ACCOUNT, START + CalendarWrapper.MINUTE * 10L);
+
+        assertEquals(Collections.singletonList("/acct/user/dsn_tcp80"), orphans);
+        assertEquals("the first sighting is kept", Long.valueOf(START), sightings.get(ACCOUNT + "/acct/user/dsn_tcp80"));
+    }
+
+    @Test
+    public void referenceClearsSighting() throws JSONException {
+        Map<String,JSONObject> objects = Collections.singletonMap("/acct/user/dsn10_0_0_0_8", ipList("10.0.0.0/8"));
+        ConcurrentMap<String,Long> sightings = new ConcurrentHashMap<String,Long>();
+
+        SecurityList.findOrphans(objects, false, PREFIX, new HashSet<String>(), sightings, ACCOUNT, START);
+        assertEquals(1, sightings.size());
+        assertTrue(SecurityList.findOrphans(objects, false, PREFIX, Collections.singleton("/acct/user/dsn10_0_0_0_8"), sightings, ACCOUNT, START + CalendarWrapper.MINUTE).isEmpty());
+        assertTrue(sightings.isEmpty());
+        // an object referenced in between starts its grace over
+        assertTrue(SecurityList.findOrphans(objects, false, PREFIX, new HashSet<String>(), sightings, ACCOUNT, START + CalendarWrapper.HOUR).isEmpty());
+    }
+
+    @Test
+    public void ignoresObjectsItDidNotGenerate() throws JSONException {
+        LinkedHashMap<String,JSONObject> objects = new LinkedHashMap<String,JSONObject>();
+        ConcurrentMap<String,Long> sightings = new ConcurrentHashMap<String,Long>();
+
+        objects.put("/acct/user/dsnservers", application("tcp", "80"));
+        objects.put("/acct/user/dsn_legacy", application("tcp", "80"));
+        objects.put("/acct/user/web", application("tcp", "443"));
+        SecurityList.findOrphans(objects, true, PREFIX, new HashSet<String>(), sightings, ACCOUNT, START);
+        assertTrue(SecurityList.findOrphans(objects, true, PREFIX, new HashSet<String>(), sightings, ACCOUNT, START + CalendarWrapper.DAY).isEmpty());
+        assertTrue(sightings.isEmpty());
+    }
+
+    @Test
+    public void keepsSightingsApartPerAccount() throws JSONException {
+        Map<String,JSONObject> objects = Collections.singletonMap("/acct/user/dsn_tcp80", application("tcp", "80"));
+        ConcurrentMap<String,Long> sightings = new ConcurrentHashMap<String,Long>();
+
+        SecurityList.findOrphans(objects, true, PREFIX, new HashSet<String>(), sightings, ACCOUNT, START);
+        assertTrue(SecurityList.findOrphans(objects, true, PREFIX, new HashSet<String>(), sightings, "other:", START + CalendarWrapper.HOUR).isEmpty());
+        assertEquals(2, sightings.size());
+    }
+}
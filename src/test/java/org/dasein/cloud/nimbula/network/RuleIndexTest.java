@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.network;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises building, finding in, and updating a {@link RuleIndex}.
+ */
+public class RuleIndexTest {
+    static private final String WEB = "seclist:/acct/user/web";
+    static private final String DB  = "seclist:/acct/user/db";
+    static private final String NET = "seciplist:/acct/user/dsn10_0_0_0_8";
+    static private final String SSH = "/acct/user/dsn_tcp22";
+
+    static JSONObject rule(String name, String destination, String source, String application, String action) throws JSONException {
+        JSONObject ob = new JSONObject();
+
+        ob.put("name", name);
+        ob.put("dst_list", destination);
+        if( source != null ) {
+            ob.put("src_list", source);
+        }
+        if( application != null ) {
+            ob.put("application", application);
+        }
+        if( action != null ) {
+            ob.put("action", action);
+        }
+        return ob;
+    }
+
+    private RuleIndex index(JSONObject ... rules) throws JSONException {
+        return RuleIndex.fromJSON(new JSONArray(Arrays.asList(rules)), 1000L);
+    }
+
+    @Test
+    public void indexesByDestinationInListingOrder() throws JSONException {
+        RuleIndex index = index(rule("r1", WEB, NET, SSH, "PERMIT"), rule("r2", DB, NET, SSH, "PERMIT"), rule("r3", WEB, NET, "/acct/user/dsn_tcp80", "PERMIT"));
+
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList(WEB, DB), index.getDestinations());
+        assertEquals(2, index.getRules(WEB).size());
+        assertEquals("r1", index.getRules(WEB).get(0).getString("name"));
+        assertEquals("r3", index.getRules(WEB).get(1).getString("name"));
+        assertTrue(index.getRules("seclist:/acct/user/none").isEmpty());
+        assertEquals(1000L, index.getTimestamp());
+    }
+
+    @Test
+    public void skipsRulesTargetingIpLists() throws JSONException {
+        JSONObject ob = rule("r1", NET, "seclist:/acct/user/web", SSH, "PERMIT");
+
+        ob.put("dst_is_ip", true);
+        assertEquals(0, index(ob, new JSONObject()).size());
+    }
+
+    @Test
+    public void findsByMatchIgnoringActionCase() throws JSONException {
+        RuleIndex index = index(rule("r1", WEB, NET, SSH, "PERMIT"), rule("r2", WEB, NET, SSH, "permit"), rule("r3", WEB, NET, SSH, "DENY"));
+
+        assertEquals(Arrays.asList("r1", "r2"), index.find(WEB, NET, SSH, "Permit"));
+        assertEquals(Collections.singletonList("r3"), index.find(WEB, NET, SSH, "deny"));
+        assertTrue(index.find(DB, NET, SSH, "permit").isEmpty());
+    }
+
+    @Test
+    public void rulesMissingMatchFieldsAreListedButNotFound() throws JSONException {
+        RuleIndex index = index(rule("r1", WEB, null, SSH, "PERMIT"), rule("r2", WEB, NET, SSH, null));
+
+        assertEquals(2, index.getRules(WEB).size());
+        assertTrue(index.find(WEB, NET, SSH, "permit").isEmpty());
+    }
+
+    @Test
+    public void addReplacesRuleOfSameName() throws JSONException {
+        RuleIndex index = index(rule("r1", WEB, NET, SSH, "PERMIT"));
+
+        index.add(rule("r1", DB, NET, SSH, "DENY"));
+        assertEquals(1, index.size());
+        assertEquals(Collections.singletonList(DB), index.getDestinations());
+        assertTrue(index.find(WEB, NET, SSH, "permit").isEmpty());
+        assertEquals(Collections.singletonList("r1"), index.find(DB, NET, SSH, "deny"));
+    }
+
+    @Test
+    public void removeDropsEveryTrace() throws JSONException {
+        RuleIndex index = index(rule("r1", WEB, NET, SSH, "PERMIT"), rule("r2", WEB, NET, SSH, "PERMIT"));
+
+        index.remove("r1");
+        assertEquals(Collections.singletonList("r2"), index.find(WEB, NET, SSH, "permit"));
+        index.remove("r2");
+        index.remove("r2");
+        index.remove("unknown");
+        assertEquals(0, index.size());
+        assertTrue(index.getDestinations().isEmpty());
+        assertTrue(index.getRules(WEB).isEmpty());
+        assertTrue(index.find(WEB, NET, SSH, "permit").isEmpty());
+        index.add(rule("r3", WEB, NET, SSH, "PERMIT"));
+        assertEquals(Collections.singletonList("r3"), index.find(WEB, NET, SSH, "permit"));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.nimbula.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.OperationNotSupportedException;
+import org.dasein.cloud.network.Direction;
+import org.dasein.cloud.network.FirewallRule;
+import org.dasein.cloud.network.Permission;
+import org.dasein.cloud.network.Protocol;
+import org.dasein.cloud.network.RuleTarget;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises {@link SecurityList#plan(String, Collection, List, SecurityLookup, SecurityLookup, SecurityList.ApplicationReader)} against canned rules, applications and IP lists.
+ */
+public class SecurityListPlanTest {
+    static private final String FIREWALL = "/acct/user/web";
+    static private final String HTTP     = "/acct/user/dsn_tcp80";
+    static private final String NET      = "/acct/user/dsn10_0_0_0_8";
+    static private final String SSH      = "/oracle/public/ssh";
+
+    private final List<String>     reads   = new ArrayList<String>();
+    private SecurityLookup         applications;
+    private SecurityLookup         ipLists;
+    private SecurityList.ApplicationReader reader;
+
+    @Before
+    public void setUp() throws JSONException {
+        JSONObject http = new JSONObject();
+        JSONObject net = new JSONObject();
+
+        http.put("name", HTTP);
+        http.put("protocol", "tcp");
+        http.put("dport", "80");
+        net.put("name", NET);
+        net.put("secipentries", new JSONArray(Collections.singletonList("10.0.0.0/8")));
+        applications = SecurityLookup.forApplications(new JSONArray(Collections.singletonList(http)), 1000L);
+        ipLists = SecurityLookup.forIpLists(new JSONArray(Collections.singletonList(net)), 1000L);
+        reader = new SecurityList.ApplicationReader() {
+            @Override
+            public JSONObject read(String name) throws CloudException, InternalException {
+                reads.add(name);
+                if( !name.equals(SSH) ) {
+                    return null;
+                }
+                try {
+                    JSONObject ssh = new JSONObject();
+
+                    ssh.put("name", SSH);
+                    ssh.put("protocol", "tcp");
+                    ssh.put("dport", "22");
+                    return ssh;
+                }
+                catch( JSONException e ) {
+                    throw new InternalException(e);
+                }
+            }
+        };
+    }
+
+    private FirewallRule desired(String cidr, int port) {
+        return FirewallRule.getInstance(null, FIREWALL, RuleTarget.getCIDR(cidr), Direction.INGRESS, Protocol.TCP, Permission.ALLOW, RuleTarget.getGlobal(FIREWALL), port, port);
+    }
+
+    private JSONObject current(String name, String source, String application) throws JSONException {
+        return RuleIndexTest.rule(name, "seclist:" + FIREWALL, source, application, "PERMIT");
+    }
+
+    private FirewallPlan plan(Collection<FirewallRule> desired, JSONObject ... rules) throws CloudException, InternalException {
+        return SecurityList.plan(FIREWALL, desired, Arrays.asList(rules), applications, ipLists, reader);
+    }
+
+    @Test
+    public void keepsOneOfDuplicateRules() throws Exception {
+        FirewallPlan plan = plan(Collections.singletonList(desired("10.0.0.0/8", 80)), current("r1", "seciplist:" + NET, HTTP), current("r2", "seciplist:" + NET, HTTP));
+
+        assertEquals(1, plan.getUnchangedCount());
+        assertEquals(Collections.singletonList("r2"), plan.getRulesToRevoke());
+        assertTrue(plan.getRulesToAuthorize().isEmpty());
+        assertTrue(plan.getApplicationsToCreate().isEmpty());
+        assertTrue(plan.getIpListsToCreate().isEmpty());
+    }
+
+    @Test
+    public void matchesRulesThroughPublicApplicationsByPort() throws Exception {
+        FirewallPlan plan = plan(Collections.singletonList(desired("10.0.0.0/8", 22)), current("r1", "seciplist:" + NET, SSH));
+
+        assertEquals(1, plan.getUnchangedCount());
+        assertTrue(plan.getRulesToRevoke().isEmpty());
+        assertTrue(plan.getRulesToAuthorize().isEmpty());
+        assertTrue("no account application is needed for a port a public one covers", plan.getApplicationsToCreate().isEmpty());
+        // the public application is read once and then known to the lookup
+        plan(Collections.singletonList(desired("10.0.0.0/8", 22)), current("r1", "seciplist:" + NET, SSH));
+        assertEquals(Collections.singletonList(SSH), reads);
+    }
+
+    @Test
+    public void leavesRulesFromSecurityListsAlone() throws Exception {
+        FirewallPlan plan = plan(Collections.<FirewallRule>emptyList(), current("r1", "seclist:/acct/user/lb", HTTP), current("r2", "seciplist:" + NET, HTTP));
+
+        assertEquals(Collections.singletonList("r2"), plan.getRulesToRevoke());
+        assertTrue(reads.isEmpty());
+    }
+
+    @Test
+    public void plansWhatIsMissing() throws Exception {
+        FirewallPlan plan = plan(Arrays.asList(desired("192.168.0.0/16", 443), desired("10.0.0.0/8", 80)));
+
+        assertEquals(Collections.singletonList("tcp:443"), plan.getApplicationsToCreate());
+        assertEquals(Collections.singletonList("192.168.0.0/16"), plan.getIpListsToCreate());
+        assertEquals(Arrays.asList("tcp:443 192.168.0.0/16 permit", "tcp:80 10.0.0.0/8 permit"), new ArrayList<String>(plan.getRulesToAuthorize().keySet()));
+        assertEquals(0, plan.getUnchangedCount());
+    }
+
+    @Test
+    public void revokesRulesThroughMissingApplications() throws Exception {
+        FirewallPlan plan = plan(Collections.singletonList(desired("10.0.0.0/8", 80)), current("r1", "seciplist:" + NET, "/acct/user/gone"), current("r2", "seciplist:" + NET, HTTP));
+
+        assertEquals(Collections.singletonList("r1"), plan.getRulesToRevoke());
+        assertEquals(1, plan.getUnchangedCount());
+    }
+
+    @Test(expected = OperationNotSupportedException.class)
+    public void rejectsEgressRules() throws Exception {
+        plan(Collections.singletonList(FirewallRule.getInstance(null, FIREWALL, RuleTarget.getGlobal(FIREWALL), Direction.EGRESS, Protocol.TCP, Permission.ALLOW, RuleTarget.getCIDR("10.0.0.0/8"), 80, 80)));
+    }
+}